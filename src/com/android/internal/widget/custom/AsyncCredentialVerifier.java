@@ -0,0 +1,259 @@
+package com.android.internal.widget.custom;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hashes and verifies credentials with {@link CredentialHasher} on a
+ * background thread, so the key derivation doesn't block input and
+ * animations, and delivers the results on the main thread.
+ *
+ * Each instance has at most one request in flight: a new request or
+ * {@link #cancel()} drops the previous one, whose listener is then never
+ * called. The requests of all instances share one worker thread and a
+ * bounded queue. Must be used from the main thread.
+ *
+ * A request that throws is reported as a failure rather than dropped: a
+ * check as not matched, a hash as a null record, so the callers always
+ * hear back and can restore their input.
+ */
+public final class AsyncCredentialVerifier {
+    private static final String TAG = "AsyncCredentialVerifier";
+
+    private static final int QUEUE_CAPACITY = 4;
+
+    // the result of a request that threw
+    private static final Object FAILED = new Object();
+
+    public interface OnVerifiedListener {
+        /**
+         * Called on the main thread once the credential was checked, with
+         * false if it couldn't be.
+         */
+        void onVerified(boolean matched);
+    }
+
+    public interface OnHashedListener {
+        /**
+         * Called on the main thread once the credential was hashed.
+         * @param record The hashed credential, or null if it couldn't be hashed.
+         */
+        void onHashed(CredentialHasher.Record record);
+    }
+
+    private static final ThreadPoolExecutor sExecutor = new ThreadPoolExecutor(1, 1,
+            0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(QUEUE_CAPACITY),
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(final Runnable r) {
+                    final Thread thread = new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                            r.run();
+                        }
+                    }, TAG);
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private Future<?> mPending;
+    // bumped by every new request and cancellation, stale results are dropped
+    private int mGeneration;
+
+    /**
+     * Check a pattern against a hashed credential.
+     * @return false if the queue is full, in which case the listener won't be called.
+     */
+    public boolean verifyPattern(final CredentialHasher.Record record, final long packed,
+            final OnVerifiedListener listener) {
+        return submit(new Request() {
+            @Override
+            Object compute() {
+                return CredentialHasher.verifyPattern(record, packed);
+            }
+
+            @Override
+            void deliver(Object result) {
+                listener.onVerified((Boolean) result);
+            }
+
+            @Override
+            void fail() {
+                listener.onVerified(false);
+            }
+        });
+    }
+
+    /**
+     * Check a PIN against a hashed credential.
+     * @return false if the queue is full, in which case the listener won't be called.
+     */
+    public boolean verifyPin(final CredentialHasher.Record record, final String pin,
+            final OnVerifiedListener listener) {
+        return submit(new Request() {
+            @Override
+            Object compute() {
+                return CredentialHasher.verifyPin(record, pin);
+            }
+
+            @Override
+            void deliver(Object result) {
+                listener.onVerified((Boolean) result);
+            }
+
+            @Override
+            void fail() {
+                listener.onVerified(false);
+            }
+        });
+    }
+
+    /**
+     * Hash a pattern with a work factor calibrated for the target latency,
+     * see {@link CredentialHasher#calibrated(long)}.
+     * @return false if the queue is full, in which case the listener won't be called.
+     */
+    public boolean hashPattern(final long targetMillis, final long packed,
+            final OnHashedListener listener) {
+        return submit(new Request() {
+            @Override
+            Object compute() {
+                return CredentialHasher.calibrated(targetMillis).hashPattern(packed);
+            }
+
+            @Override
+            void deliver(Object result) {
+                listener.onHashed((CredentialHasher.Record) result);
+            }
+
+            @Override
+            void fail() {
+                listener.onHashed(null);
+            }
+        });
+    }
+
+    /**
+     * Hash a PIN with a work factor calibrated for the target latency,
+     * see {@link CredentialHasher#calibrated(long)}.
+     * @return false if the queue is full, in which case the listener won't be called.
+     */
+    public boolean hashPin(final long targetMillis, final String pin,
+            final OnHashedListener listener) {
+        return submit(new Request() {
+            @Override
+            Object compute() {
+                return CredentialHasher.calibrated(targetMillis).hashPin(pin);
+            }
+
+            @Override
+            void deliver(Object result) {
+                listener.onHashed((CredentialHasher.Record) result);
+            }
+
+            @Override
+            void fail() {
+                listener.onHashed(null);
+            }
+        });
+    }
+
+    /**
+     * @return Whether a request is in flight.
+     */
+    public boolean isPending() {
+        return mPending != null;
+    }
+
+    /**
+     * Drop the request in flight, if any. Its listener won't be called, and
+     * the key derivation stops if it already started.
+     */
+    public void cancel() {
+        mGeneration++;
+        if (mPending != null) {
+            mPending.cancel(true);
+            // free its place in the queue right away
+            sExecutor.remove((Runnable) mPending);
+            mPending = null;
+        }
+    }
+
+    /**
+     * Run a task on the worker thread shared by all verifiers.
+     * @return false if the queue is full.
+     */
+    static boolean execute(Runnable task) {
+        try {
+            sExecutor.execute(task);
+            return true;
+        } catch (RejectedExecutionException e) {
+            Log.w(TAG, "too many pending requests", e);
+            return false;
+        }
+    }
+
+    private boolean submit(final Request request) {
+        cancel();
+        final int generation = mGeneration;
+        try {
+            mPending = sExecutor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    Object result;
+                    try {
+                        result = request.compute();
+                    } catch (CancellationException e) {
+                        return;
+                    } catch (RuntimeException e) {
+                        // a malformed credential, the caller still has to hear back
+                        Log.w(TAG, "request failed", e);
+                        result = FAILED;
+                    }
+                    final Object delivered = result;
+                    mMainHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (generation != mGeneration) {
+                                // cancelled or replaced meanwhile
+                                return;
+                            }
+                            mPending = null;
+                            if (delivered == FAILED) {
+                                request.fail();
+                            } else {
+                                request.deliver(delivered);
+                            }
+                        }
+                    });
+                }
+            });
+            return true;
+        } catch (RejectedExecutionException e) {
+            Log.w(TAG, "too many pending requests", e);
+            return false;
+        }
+    }
+
+    private abstract static class Request {
+        /** Runs on the worker thread */
+        abstract Object compute();
+        /** Runs on the main thread */
+        abstract void deliver(Object result);
+        /** Runs on the main thread when {@link #compute()} threw */
+        abstract void fail();
+    }
+}
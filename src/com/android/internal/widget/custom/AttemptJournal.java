@@ -0,0 +1,338 @@
+package com.android.internal.widget.custom;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Records the credential attempts, their time and outcome, for lockout and
+ * rate limit decisions. Only attempts to unlock with the enrolled
+ * credential belong here; the confirmation of a credential being enrolled
+ * is not an attempt.
+ *
+ * The journal is a fixed size ring of entries in a memory-mapped file, so
+ * recording an attempt is a memory write, flushed to storage by the system
+ * in its own time, and the history survives restarts. Attempts of the last
+ * {@link #MAX_WINDOW_MINUTES} minutes are also counted per minute in
+ * memory, so the questions asked on each attempt are answered without
+ * reading the ring.
+ *
+ * The file is opened and read on a background thread when the journal is
+ * first used, nothing waits for it: attempts recorded meanwhile are counted
+ * in memory, and written and counted after the ones of the file once it is
+ * mapped.
+ */
+public final class AttemptJournal {
+    private static final String TAG = "AttemptJournal";
+
+    /** The longest window the attempts can be counted over, in minutes */
+    public static final int MAX_WINDOW_MINUTES = 60;
+
+    private static final String FILE_NAME = "attempts";
+    private static final int CAPACITY = 4096;
+
+    // "SYAJ"
+    private static final int MAGIC = 0x5359414a;
+    private static final int FORMAT_VERSION = 1;
+    private static final int OFFSET_MAGIC = 0;
+    private static final int OFFSET_VERSION = 4;
+    private static final int OFFSET_CAPACITY = 8;
+    private static final int OFFSET_HEAD = 12;
+    private static final int OFFSET_COUNT = 16;
+    private static final int HEADER_SIZE = 32;
+    // time in milliseconds shifted left, the low bit is set for a success
+    private static final int ENTRY_SIZE = 8;
+
+    private static final long MILLIS_PER_MINUTE = 60 * 1000;
+    private static final int BUCKETS = MAX_WINDOW_MINUTES + 1;
+
+    private static AttemptJournal sInstance;
+
+    private final File mFile;
+    private final Object mLock = new Object();
+
+    // guarded by mLock
+    private MappedByteBuffer mBuffer;
+    private boolean mOpened;
+    private int mHead;
+    private int mCount;
+    // attempts recorded before the file was mapped
+    private long[] mUnwritten = new long[4];
+    private int mUnwrittenCount;
+
+    // running totals, and their values at the start of each recent minute
+    private long mAttempts;
+    private long mFailures;
+    private final long[] mAttemptsAtMinute = new long[BUCKETS];
+    private final long[] mFailuresAtMinute = new long[BUCKETS];
+    private long mMinute = Long.MIN_VALUE;
+    private int mConsecutiveFailures;
+    private long mLastFailureMillis;
+
+    /**
+     * @return The journal of the app, which starts opening if it's the first use.
+     */
+    public static synchronized AttemptJournal getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new AttemptJournal(context.getApplicationContext().getFilesDir());
+        }
+        return sInstance;
+    }
+
+    /**
+     * Exposed for tests, the app uses {@link #getInstance(Context)}.
+     */
+    AttemptJournal(File directory) {
+        mFile = new File(directory, FILE_NAME);
+        final Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                open();
+            }
+        }, TAG);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Record an attempt made now.
+     * @param success Whether the credential was right.
+     */
+    public void record(boolean success) {
+        final long now = System.currentTimeMillis();
+        final long entry = (now << 1) | (success ? 1 : 0);
+        synchronized (mLock) {
+            if (mOpened) {
+                writeLocked(entry);
+            } else {
+                if (mUnwrittenCount == mUnwritten.length) {
+                    mUnwritten = Arrays.copyOf(mUnwritten, mUnwrittenCount * 2);
+                }
+                mUnwritten[mUnwrittenCount++] = entry;
+            }
+            countLocked(now, success);
+        }
+    }
+
+    private void writeLocked(long entry) {
+        if (mBuffer == null) {
+            return;
+        }
+        mBuffer.putLong(HEADER_SIZE + mHead * ENTRY_SIZE, entry);
+        mHead = (mHead + 1) % CAPACITY;
+        mCount = Math.min(mCount + 1, CAPACITY);
+        mBuffer.putInt(OFFSET_HEAD, mHead);
+        mBuffer.putInt(OFFSET_COUNT, mCount);
+    }
+
+    /**
+     * @return The number of attempts in the last minutes, including the
+     * current one.
+     * @param minutes At most {@link #MAX_WINDOW_MINUTES}.
+     */
+    public int getAttempts(int minutes) {
+        synchronized (mLock) {
+            advanceLocked(System.currentTimeMillis() / MILLIS_PER_MINUTE);
+            return (int) (mAttempts - mAttemptsAtMinute[windowStartLocked(minutes)]);
+        }
+    }
+
+    /**
+     * @return The number of failed attempts in the last minutes, including
+     * the current one.
+     * @param minutes At most {@link #MAX_WINDOW_MINUTES}.
+     */
+    public int getFailures(int minutes) {
+        synchronized (mLock) {
+            advanceLocked(System.currentTimeMillis() / MILLIS_PER_MINUTE);
+            return (int) (mFailures - mFailuresAtMinute[windowStartLocked(minutes)]);
+        }
+    }
+
+    /**
+     * @return The number of failed attempts since the last successful one.
+     */
+    public int getConsecutiveFailures() {
+        synchronized (mLock) {
+            return mConsecutiveFailures;
+        }
+    }
+
+    /**
+     * @return The time of the last failed attempt, in milliseconds since
+     * the epoch, or 0 if there is none.
+     */
+    public long getLastFailureMillis() {
+        synchronized (mLock) {
+            return mLastFailureMillis;
+        }
+    }
+
+    /**
+     * @return Whether the file was read, and the attempts recorded
+     * meanwhile written to it. Exposed for tests.
+     */
+    boolean isOpened() {
+        synchronized (mLock) {
+            return mOpened;
+        }
+    }
+
+    private int windowStartLocked(int minutes) {
+        if (minutes < 1 || minutes > MAX_WINDOW_MINUTES) {
+            throw new IllegalArgumentException("minutes out of range: " + minutes);
+        }
+        return bucket(mMinute - minutes + 1);
+    }
+
+    private void countLocked(long millis, boolean success) {
+        advanceLocked(millis / MILLIS_PER_MINUTE);
+        mAttempts++;
+        if (success) {
+            mConsecutiveFailures = 0;
+        } else {
+            mFailures++;
+            mConsecutiveFailures++;
+            mLastFailureMillis = millis;
+        }
+    }
+
+    /**
+     * Move the current minute forward, starting the buckets of the minutes
+     * passed with the running totals.
+     */
+    private void advanceLocked(long minute) {
+        if (mMinute == Long.MIN_VALUE) {
+            mMinute = minute - BUCKETS;
+        }
+        // the clock may go back, keep counting in the latest minute then
+        if (minute <= mMinute) {
+            return;
+        }
+        final long from = Math.max(mMinute + 1, minute - BUCKETS + 1);
+        for (long m = from; m <= minute; m++) {
+            mAttemptsAtMinute[bucket(m)] = mAttempts;
+            mFailuresAtMinute[bucket(m)] = mFailures;
+        }
+        mMinute = minute;
+    }
+
+    private static int bucket(long minute) {
+        return (int) (((minute % BUCKETS) + BUCKETS) % BUCKETS);
+    }
+
+    /**
+     * Map the file, creating it if needed, and read its entries, then count
+     * them and the attempts recorded meanwhile. Only the counting holds the
+     * lock.
+     */
+    private void open() {
+        final MappedByteBuffer buffer = map();
+        int head = 0;
+        int count = 0;
+        long[] entries = new long[0];
+        if (buffer != null) {
+            head = buffer.getInt(OFFSET_HEAD);
+            count = buffer.getInt(OFFSET_COUNT);
+            if (head < 0 || head >= CAPACITY || count < 0 || count > CAPACITY) {
+                head = 0;
+                count = 0;
+            }
+            // oldest first
+            entries = new long[count];
+            for (int i = 0; i < count; i++) {
+                final int index = (head - count + i + CAPACITY) % CAPACITY;
+                entries[i] = buffer.getLong(HEADER_SIZE + index * ENTRY_SIZE);
+            }
+        }
+
+        synchronized (mLock) {
+            mBuffer = buffer;
+            mHead = head;
+            mCount = count;
+            resetCountersLocked();
+            // the consecutive failures and last failure from all of them, the
+            // counters from the ones in the window
+            final long windowStart = System.currentTimeMillis()
+                    - MAX_WINDOW_MINUTES * MILLIS_PER_MINUTE;
+            for (long entry : entries) {
+                final long millis = entry >>> 1;
+                final boolean success = (entry & 1) != 0;
+                if (millis >= windowStart) {
+                    countLocked(millis, success);
+                } else if (success) {
+                    mConsecutiveFailures = 0;
+                } else {
+                    mConsecutiveFailures++;
+                    mLastFailureMillis = millis;
+                }
+            }
+            for (int i = 0; i < mUnwrittenCount; i++) {
+                final long entry = mUnwritten[i];
+                writeLocked(entry);
+                countLocked(entry >>> 1, (entry & 1) != 0);
+            }
+            mUnwritten = null;
+            mUnwrittenCount = 0;
+            mOpened = true;
+        }
+    }
+
+    private void resetCountersLocked() {
+        mAttempts = 0;
+        mFailures = 0;
+        Arrays.fill(mAttemptsAtMinute, 0);
+        Arrays.fill(mFailuresAtMinute, 0);
+        mMinute = Long.MIN_VALUE;
+        mConsecutiveFailures = 0;
+        mLastFailureMillis = 0;
+    }
+
+    /**
+     * @return The file mapped, with a valid header, or null if it couldn't be.
+     */
+    private MappedByteBuffer map() {
+        final int size = HEADER_SIZE + CAPACITY * ENTRY_SIZE;
+        final MappedByteBuffer buffer;
+        RandomAccessFile file = null;
+        try {
+            file = new RandomAccessFile(mFile, "rw");
+            final boolean fresh = file.length() != size;
+            if (fresh) {
+                file.setLength(0);
+                file.setLength(size);
+            }
+            // the mapping stays valid once the file is closed
+            buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        } catch (IOException e) {
+            Log.e(TAG, "couldn't open the journal, attempts are only counted", e);
+            return null;
+        } finally {
+            if (file != null) {
+                try {
+                    file.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+
+        if (buffer.getInt(OFFSET_MAGIC) != MAGIC
+                || buffer.getInt(OFFSET_VERSION) != FORMAT_VERSION
+                || buffer.getInt(OFFSET_CAPACITY) != CAPACITY) {
+            for (int offset = 0; offset < size; offset += ENTRY_SIZE) {
+                buffer.putLong(offset, 0);
+            }
+            buffer.putInt(OFFSET_MAGIC, MAGIC);
+            buffer.putInt(OFFSET_VERSION, FORMAT_VERSION);
+            buffer.putInt(OFFSET_CAPACITY, CAPACITY);
+        }
+        return buffer;
+    }
+}
@@ -0,0 +1,232 @@
+package com.android.internal.widget.custom;
+
+import android.graphics.Rect;
+import android.view.animation.Interpolator;
+
+import java.util.Arrays;
+
+/**
+ * The software animations of the cells of a {@link LockPatternView}, kept in
+ * a preallocated table of (cell, property, from, to, start, duration,
+ * interpolator) slots instead of one ValueAnimator per animation.
+ *
+ * All running slots are advanced in one pass per frame by {@link #tick},
+ * which reports the area to redraw so the view invalidates once per frame.
+ * Must be used from the UI thread.
+ */
+final class CellAnimationTable {
+
+    /** The radius of the ring of a cell, in pixels */
+    static final int PROPERTY_RADIUS = 0;
+    /** The alpha of a cell */
+    static final int PROPERTY_ALPHA = 1;
+    /** The vertical offset of a cell */
+    static final int PROPERTY_TRANSLATION_Y = 2;
+    /** The scale of the bitmap of a cell, going from the start value to the end value and back */
+    static final int PROPERTY_SCALE_PULSE = 3;
+
+    interface Target {
+        /**
+         * Set the animated value of a property of a cell.
+         * @param dirty Rectangle the area of the cell that needs to be redrawn
+         * should be added to.
+         */
+        void setCellProperty(int cell, int property, float value, Rect dirty);
+    }
+
+    private static final int INITIAL_CAPACITY = 32;
+
+    private static final byte FREE = 0;
+    private static final byte RUNNING = 1;
+    // waiting for the slot it is chained to
+    private static final byte PENDING = 2;
+
+    private final Target mTarget;
+
+    private byte[] mState = new byte[INITIAL_CAPACITY];
+    private int[] mCell = new int[INITIAL_CAPACITY];
+    private int[] mProperty = new int[INITIAL_CAPACITY];
+    private float[] mFrom = new float[INITIAL_CAPACITY];
+    private float[] mTo = new float[INITIAL_CAPACITY];
+    private long[] mStartNanos = new long[INITIAL_CAPACITY];
+    private long[] mDurationNanos = new long[INITIAL_CAPACITY];
+    private Interpolator[] mInterpolator = new Interpolator[INITIAL_CAPACITY];
+    private Runnable[] mEndAction = new Runnable[INITIAL_CAPACITY];
+    private int[] mNext = new int[INITIAL_CAPACITY];
+    private int mActive;
+
+    // end actions of the current frame, run once all slots are updated
+    private Runnable[] mPendingEndActions = new Runnable[INITIAL_CAPACITY];
+
+    CellAnimationTable(Target target) {
+        mTarget = target;
+    }
+
+    /**
+     * @return Whether any animation is running or waiting to run.
+     */
+    boolean isRunning() {
+        return mActive > 0;
+    }
+
+    /**
+     * Start animating a property of a cell, replacing any animation of that
+     * property. The start value is applied right away.
+     *
+     * @param interpolator The interpolator, or null for a linear animation.
+     * @param endAction Run once the animation completed, may be null.
+     * @return The slot of the animation, to chain another one after it.
+     */
+    int start(int cell, int property, float from, float to, long delayMillis,
+            long durationMillis, Interpolator interpolator, Runnable endAction, Rect dirty) {
+        cancel(cell, property);
+        final int slot = obtain(cell, property, from, to, durationMillis, interpolator, endAction);
+        mState[slot] = RUNNING;
+        mStartNanos[slot] = System.nanoTime() + delayMillis * 1000000;
+        mTarget.setCellProperty(cell, property, from, dirty);
+        return slot;
+    }
+
+    /**
+     * Animate the same property once the animation in the given slot is over.
+     *
+     * @return The slot of the animation.
+     */
+    int chain(int previous, float from, float to, long durationMillis,
+            Interpolator interpolator, Runnable endAction) {
+        final int slot = obtain(mCell[previous], mProperty[previous], from, to, durationMillis,
+                interpolator, endAction);
+        mState[slot] = PENDING;
+        mNext[previous] = slot;
+        return slot;
+    }
+
+    /**
+     * Cancel the animations of a property of a cell, including chained ones.
+     * The property keeps its current value and end actions are not run.
+     */
+    void cancel(int cell, int property) {
+        for (int i = 0; i < mState.length; i++) {
+            if (mState[i] != FREE && mCell[i] == cell && mProperty[i] == property) {
+                release(i);
+            }
+        }
+    }
+
+    /**
+     * Cancel all animations.
+     */
+    void cancelAll() {
+        for (int i = 0; i < mState.length; i++) {
+            if (mState[i] != FREE) {
+                release(i);
+            }
+        }
+    }
+
+    /**
+     * Jump all animations to their end value, and the end value of the
+     * animations chained to them, running their end actions.
+     */
+    void end(Rect dirty) {
+        while (mActive > 0) {
+            tick(Long.MAX_VALUE, dirty);
+        }
+    }
+
+    /**
+     * Advance all running animations to the given frame time.
+     * @param frameTimeNanos The frame time, in the {@link System#nanoTime()} time base.
+     * @param dirty Rectangle the areas to redraw are added to.
+     * @return Whether any animation still needs frames.
+     */
+    boolean tick(long frameTimeNanos, Rect dirty) {
+        int endActions = 0;
+        final int capacity = mState.length;
+        for (int i = 0; i < capacity; i++) {
+            if (mState[i] != RUNNING || frameTimeNanos < mStartNanos[i]) {
+                continue;
+            }
+            final long elapsed = frameTimeNanos - mStartNanos[i];
+            float t = mDurationNanos[i] <= 0 || elapsed >= mDurationNanos[i]
+                    ? 1f : (float) elapsed / mDurationNanos[i];
+            final boolean done = t >= 1f;
+            if (mInterpolator[i] != null) {
+                t = mInterpolator[i].getInterpolation(t);
+            }
+            if (mProperty[i] == PROPERTY_SCALE_PULSE) {
+                t = 1f - Math.abs(2f * t - 1f);
+            }
+            mTarget.setCellProperty(mCell[i], mProperty[i],
+                    (1 - t) * mFrom[i] + t * mTo[i], dirty);
+            if (!done) {
+                continue;
+            }
+
+            if (mEndAction[i] != null) {
+                mPendingEndActions[endActions++] = mEndAction[i];
+            }
+            final int next = mNext[i];
+            mNext[i] = -1;
+            release(i);
+            if (next >= 0 && mState[next] == PENDING) {
+                mState[next] = RUNNING;
+                mStartNanos[next] = mStartNanos[i] + mDurationNanos[i];
+                mTarget.setCellProperty(mCell[next], mProperty[next], mFrom[next], dirty);
+            }
+        }
+        for (int i = 0; i < endActions; i++) {
+            final Runnable action = mPendingEndActions[i];
+            mPendingEndActions[i] = null;
+            action.run();
+        }
+        return mActive > 0;
+    }
+
+    private int obtain(int cell, int property, float from, float to, long durationMillis,
+            Interpolator interpolator, Runnable endAction) {
+        int slot = -1;
+        for (int i = 0; i < mState.length; i++) {
+            if (mState[i] == FREE) {
+                slot = i;
+                break;
+            }
+        }
+        if (slot < 0) {
+            slot = mState.length;
+            grow(slot * 2);
+        }
+        mCell[slot] = cell;
+        mProperty[slot] = property;
+        mFrom[slot] = from;
+        mTo[slot] = to;
+        mDurationNanos[slot] = durationMillis * 1000000;
+        mInterpolator[slot] = interpolator;
+        mEndAction[slot] = endAction;
+        mNext[slot] = -1;
+        mActive++;
+        return slot;
+    }
+
+    private void release(int slot) {
+        mState[slot] = FREE;
+        mInterpolator[slot] = null;
+        mEndAction[slot] = null;
+        mNext[slot] = -1;
+        mActive--;
+    }
+
+    private void grow(int capacity) {
+        mState = Arrays.copyOf(mState, capacity);
+        mCell = Arrays.copyOf(mCell, capacity);
+        mProperty = Arrays.copyOf(mProperty, capacity);
+        mFrom = Arrays.copyOf(mFrom, capacity);
+        mTo = Arrays.copyOf(mTo, capacity);
+        mStartNanos = Arrays.copyOf(mStartNanos, capacity);
+        mDurationNanos = Arrays.copyOf(mDurationNanos, capacity);
+        mInterpolator = Arrays.copyOf(mInterpolator, capacity);
+        mEndAction = Arrays.copyOf(mEndAction, capacity);
+        mNext = Arrays.copyOf(mNext, capacity);
+        mPendingEndActions = Arrays.copyOf(mPendingEndActions, capacity);
+    }
+}
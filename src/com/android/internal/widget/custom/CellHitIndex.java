@@ -0,0 +1,322 @@
+package com.android.internal.widget.custom;
+
+import android.graphics.Rect;
+
+import java.util.Arrays;
+
+/**
+ * Maps a touch position to the cell of a {@link LockPatternView} under it,
+ * computed once per layout so each touch sample is answered without loops
+ * over rows and columns and without allocating.
+ *
+ * In the grid layout the cell is found arithmetically, and a swept segment
+ * is only tested against the cells of the rows and columns it spans, so the
+ * cost doesn't grow with the number of cells. In the bitmap lock layout the
+ * cells sit on a circle, their hit boxes are bucketed into a coarse grid
+ * where each bucket keeps a bitmask of the cells overlapping it.
+ */
+final class CellHitIndex {
+
+    /** Half the size of the square hit box of a cell of the bitmap lock layout, in pixels */
+    static final float BITMAP_HIT_HALF_SIZE = 50f;
+
+    // cells of the bitmap lock layout
+    private static final int CELLS = 9;
+
+    private boolean mBitmapLayout;
+
+    // grid layout
+    private int mGridSize;
+    private float mLeft;
+    private float mTop;
+    private float mCellWidth;
+    private float mCellHeight;
+    private float mHitWidth;
+    private float mHitHeight;
+
+    // bitmap lock layout
+    private final float[] mCenterX = new float[CELLS];
+    private final float[] mCenterY = new float[CELLS];
+    private float mHalfSize;
+    private float mBucketLeft;
+    private float mBucketTop;
+    private float mBucketSize;
+    private int mBucketColumns;
+    private int mBucketRows;
+    private int[] mBuckets = new int[0];
+
+    // entry of the swept segment into each crossed box, see getCellsCrossed
+    private final float[] mEntries = new float[PatternState.MAX_CELLS];
+    private float mBoxLeft;
+    private float mBoxTop;
+    private float mBoxRight;
+    private float mBoxBottom;
+
+    /**
+     * Index an N X N grid of square cells, each one hit in a box centered on
+     * it and scaled by the hit factor.
+     */
+    void setGrid(int gridSize, float left, float top, float cellWidth, float cellHeight,
+            float hitFactor) {
+        mBitmapLayout = false;
+        mGridSize = gridSize;
+        mLeft = left;
+        mTop = top;
+        mCellWidth = cellWidth;
+        mCellHeight = cellHeight;
+        mHitWidth = cellWidth * hitFactor;
+        mHitHeight = cellHeight * hitFactor;
+    }
+
+    /**
+     * Index cells with free positions, each one hit in a square box centered on it.
+     * @param centerX The horizontal centers of the cells, in view coordinates.
+     * @param centerY The vertical centers of the cells, in view coordinates.
+     */
+    void setPoints(float[] centerX, float[] centerY, float halfSize) {
+        mBitmapLayout = true;
+        mHalfSize = halfSize;
+        float left = Float.MAX_VALUE;
+        float top = Float.MAX_VALUE;
+        float right = -Float.MAX_VALUE;
+        float bottom = -Float.MAX_VALUE;
+        for (int i = 0; i < CELLS; i++) {
+            mCenterX[i] = centerX[i];
+            mCenterY[i] = centerY[i];
+            left = Math.min(left, centerX[i] - halfSize);
+            top = Math.min(top, centerY[i] - halfSize);
+            right = Math.max(right, centerX[i] + halfSize);
+            bottom = Math.max(bottom, centerY[i] + halfSize);
+        }
+
+        // buckets of the size of a hit box, so a box overlaps at most 4 of them
+        mBucketSize = Math.max(2 * halfSize, 1f);
+        mBucketLeft = left;
+        mBucketTop = top;
+        mBucketColumns = (int) Math.floor((right - left) / mBucketSize) + 1;
+        mBucketRows = (int) Math.floor((bottom - top) / mBucketSize) + 1;
+        final int count = mBucketColumns * mBucketRows;
+        if (mBuckets.length < count) {
+            mBuckets = new int[count];
+        } else {
+            Arrays.fill(mBuckets, 0);
+        }
+        for (int i = 0; i < CELLS; i++) {
+            final int fromColumn = bucketColumn(centerX[i] - halfSize);
+            final int toColumn = bucketColumn(centerX[i] + halfSize);
+            final int fromRow = bucketRow(centerY[i] - halfSize);
+            final int toRow = bucketRow(centerY[i] + halfSize);
+            for (int row = fromRow; row <= toRow; row++) {
+                for (int column = fromColumn; column <= toColumn; column++) {
+                    mBuckets[row * mBucketColumns + column] |= 1 << i;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return The value of the cell hit at the given view coordinates, see
+     * {@link LockPatternView.Cell#getValue()}, or -1 if no cell is hit.
+     */
+    int getCellAt(float x, float y) {
+        if (mBitmapLayout) {
+            if (x < mBucketLeft || y < mBucketTop) {
+                return -1;
+            }
+            final int column = (int) ((x - mBucketLeft) / mBucketSize);
+            final int row = (int) ((y - mBucketTop) / mBucketSize);
+            if (column >= mBucketColumns || row >= mBucketRows) {
+                return -1;
+            }
+            int candidates = mBuckets[row * mBucketColumns + column];
+            // lowest cell first when hit boxes overlap
+            while (candidates != 0) {
+                final int cell = Integer.numberOfTrailingZeros(candidates);
+                candidates &= candidates - 1;
+                if (Math.abs(mCenterX[cell] - x) <= mHalfSize
+                        && Math.abs(mCenterY[cell] - y) <= mHalfSize) {
+                    return cell;
+                }
+            }
+            return -1;
+        }
+
+        if (mCellWidth <= 0 || mCellHeight <= 0) {
+            return -1;
+        }
+        final int column = gridIndex(x - mLeft, mCellWidth, mHitWidth);
+        if (column < 0) {
+            return -1;
+        }
+        final int row = gridIndex(y - mTop, mCellHeight, mHitHeight);
+        if (row < 0) {
+            return -1;
+        }
+        return row * mGridSize + column;
+    }
+
+    /**
+     * Find the cells whose hit box the segment between two touch samples
+     * crosses, so a fast swipe doesn't jump over a cell between samples.
+     *
+     * @param outCells Receives the values of the crossed cells in the order
+     * the segment enters them, it must hold as many cells as the grid.
+     * @return The number of cells crossed.
+     */
+    int getCellsCrossed(float fromX, float fromY, float toX, float toY, int[] outCells) {
+        if (mBitmapLayout) {
+            int count = 0;
+            for (int cell = 0; cell < CELLS; cell++) {
+                count = clipCell(cell, fromX, fromY, toX, toY, outCells, count);
+            }
+            return count;
+        }
+        if (mCellWidth <= 0 || mCellHeight <= 0) {
+            return 0;
+        }
+
+        // hit boxes larger than their cell reach into the neighbouring ones
+        final float marginX = Math.max(0f, (mHitWidth - mCellWidth) / 2f);
+        final float marginY = Math.max(0f, (mHitHeight - mCellHeight) / 2f);
+        final float minX = Math.min(fromX, toX) - marginX;
+        final float maxX = Math.max(fromX, toX) + marginX;
+        final float dx = toX - fromX;
+        final float dy = toY - fromY;
+        final int firstColumn = clampIndex((minX - mLeft) / mCellWidth);
+        final int lastColumn = clampIndex((maxX - mLeft) / mCellWidth);
+        int count = 0;
+        for (int column = firstColumn; column <= lastColumn; column++) {
+            // the rows the segment spans within the column
+            float minY;
+            float maxY;
+            if (dx == 0) {
+                minY = Math.min(fromY, toY);
+                maxY = Math.max(fromY, toY);
+            } else {
+                final float left = mLeft + column * mCellWidth - marginX;
+                final float t1 = clampUnit((left - fromX) / dx);
+                final float t2 = clampUnit((left + mCellWidth + 2 * marginX - fromX) / dx);
+                final float y1 = fromY + dy * t1;
+                final float y2 = fromY + dy * t2;
+                minY = Math.min(y1, y2);
+                maxY = Math.max(y1, y2);
+            }
+            final int firstRow = clampIndex((minY - marginY - mTop) / mCellHeight);
+            final int lastRow = clampIndex((maxY + marginY - mTop) / mCellHeight);
+            for (int row = firstRow; row <= lastRow; row++) {
+                count = clipCell(row * mGridSize + column, fromX, fromY, toX, toY,
+                        outCells, count);
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Clip the segment against the hit box of a cell, and if it crosses it
+     * insert the cell into the ones found so far by order of entry.
+     * @return The number of cells found.
+     */
+    private int clipCell(int cell, float fromX, float fromY, float toX, float toY,
+            int[] outCells, int count) {
+        computeBox(cell);
+        final float dx = toX - fromX;
+        final float dy = toY - fromY;
+        // clip the segment against the box, one axis at a time
+        float enter = 0f;
+        float exit = 1f;
+        if (dx == 0) {
+            if (fromX < mBoxLeft || fromX > mBoxRight) {
+                return count;
+            }
+        } else {
+            final float t1 = (mBoxLeft - fromX) / dx;
+            final float t2 = (mBoxRight - fromX) / dx;
+            enter = Math.max(enter, Math.min(t1, t2));
+            exit = Math.min(exit, Math.max(t1, t2));
+        }
+        if (dy == 0) {
+            if (fromY < mBoxTop || fromY > mBoxBottom) {
+                return count;
+            }
+        } else {
+            final float t1 = (mBoxTop - fromY) / dy;
+            final float t2 = (mBoxBottom - fromY) / dy;
+            enter = Math.max(enter, Math.min(t1, t2));
+            exit = Math.min(exit, Math.max(t1, t2));
+        }
+        if (enter > exit) {
+            return count;
+        }
+
+        // insertion sort on the entry, lowest cell first on ties
+        int i = count++;
+        while (i > 0 && (mEntries[i - 1] > enter
+                || (mEntries[i - 1] == enter && outCells[i - 1] > cell))) {
+            mEntries[i] = mEntries[i - 1];
+            outCells[i] = outCells[i - 1];
+            i--;
+        }
+        mEntries[i] = enter;
+        outCells[i] = cell;
+        return count;
+    }
+
+    /**
+     * Set a rectangle to the hit box of a cell.
+     */
+    void getCellBounds(int cell, Rect outBounds) {
+        computeBox(cell);
+        outBounds.set((int) mBoxLeft, (int) mBoxTop, (int) mBoxRight, (int) mBoxBottom);
+    }
+
+    private void computeBox(int cell) {
+        if (mBitmapLayout) {
+            mBoxLeft = mCenterX[cell] - mHalfSize;
+            mBoxTop = mCenterY[cell] - mHalfSize;
+            mBoxRight = mCenterX[cell] + mHalfSize;
+            mBoxBottom = mCenterY[cell] + mHalfSize;
+        } else {
+            mBoxLeft = mLeft + mCellWidth * (cell % mGridSize) + (mCellWidth - mHitWidth) / 2f;
+            mBoxTop = mTop + mCellHeight * (cell / mGridSize) + (mCellHeight - mHitHeight) / 2f;
+            mBoxRight = mBoxLeft + mHitWidth;
+            mBoxBottom = mBoxTop + mHitHeight;
+        }
+    }
+
+    /**
+     * @return The row or column whose hit band contains the offset, or -1.
+     */
+    private int gridIndex(float offset, float size, float hitSize) {
+        if (offset < 0) {
+            return -1;
+        }
+        final int index = Math.min((int) (offset / size), mGridSize - 1);
+        final float hitStart = size * index + (size - hitSize) / 2f;
+        if (offset >= hitStart && offset <= hitStart + hitSize) {
+            return index;
+        }
+        return -1;
+    }
+
+    /**
+     * @return The row or column at a position in cells, within the grid.
+     */
+    private int clampIndex(float position) {
+        if (position < 0) {
+            return 0;
+        }
+        return Math.min((int) position, mGridSize - 1);
+    }
+
+    private static float clampUnit(float t) {
+        return Math.max(0f, Math.min(1f, t));
+    }
+
+    private int bucketColumn(float x) {
+        return Math.min((int) ((x - mBucketLeft) / mBucketSize), mBucketColumns - 1);
+    }
+
+    private int bucketRow(float y) {
+        return Math.min((int) ((y - mBucketTop) / mBucketSize), mBucketRows - 1);
+    }
+}
@@ -0,0 +1,418 @@
+package com.android.internal.widget.custom;
+
+import android.os.SystemClock;
+import android.util.Base64;
+
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.concurrent.CancellationException;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Hashes and verifies pattern and PIN credentials with a salted
+ * PBKDF2-HMAC-SHA256, whose iteration count is the work factor.
+ *
+ * The work factor can be calibrated so verifying a credential takes about a
+ * target time on the current device, see {@link #calibrate(long)}. Each
+ * {@link Record} keeps the work factor it was hashed with, so records stay
+ * verifiable when the calibration changes.
+ *
+ * Patterns can also be hashed with a chained scheme, one key derivation
+ * stage per cell and a final one, so the stages can run while the pattern
+ * is being drawn, see {@link CredentialPipeline}. A cell stage runs a
+ * fraction of the work factor and the final stage all of it, so checking a
+ * guess costs more than with a single derivation. Patterns sharing a prefix
+ * share its cell stages though, so a search over all the patterns mostly
+ * pays for the final stages, about as much as against a single derivation.
+ */
+public final class CredentialHasher {
+
+    public static final int TYPE_PATTERN = 1;
+    public static final int TYPE_PIN = 2;
+
+    /** A single PBKDF2 over the whole credential */
+    public static final int SCHEME_PBKDF2 = 1;
+    /** A PBKDF2 stage per cell of a pattern, each keyed by the previous one, and a final one */
+    public static final int SCHEME_CHAINED = 2;
+
+    /**
+     * A chained cell stage runs this fraction of the calibrated work factor,
+     * so it keeps up with a finger going from cell to cell. The final stage
+     * runs the whole work factor.
+     */
+    static final int CHAINED_STAGES_PER_TARGET = 4;
+
+    /** The verify latency aimed at by default, in milliseconds */
+    public static final long DEFAULT_TARGET_MILLIS = 150;
+
+    static final int MIN_ITERATIONS = 1000;
+    static final int MAX_ITERATIONS = 1 << 22;
+
+    private static final String MAC_ALGORITHM = "HmacSHA256";
+    private static final int SALT_LENGTH = 16;
+    private static final int HASH_LENGTH = 32;
+    // iterations timed by the calibration, enough to dwarf the timer resolution
+    private static final int PROBE_ITERATIONS = 2000;
+    private static final String RECORD_VERSION = "1";
+    private static final String CHAINED_RECORD_VERSION = "2";
+
+    private static final SecureRandom sRandom = new SecureRandom();
+
+    private static int sCalibratedIterations;
+    private static long sCalibratedTargetMillis;
+
+    private final int mIterations;
+
+    /**
+     * @param iterations The work factor new credentials are hashed with.
+     */
+    public CredentialHasher(int iterations) {
+        if (iterations < MIN_ITERATIONS || iterations > MAX_ITERATIONS) {
+            throw new IllegalArgumentException("iterations out of range: " + iterations);
+        }
+        mIterations = iterations;
+    }
+
+    /**
+     * @return A hasher whose work factor was calibrated for the target
+     * latency on this device. The calibration runs once per process and
+     * target, it takes a few milliseconds so it is better done off the UI
+     * thread.
+     */
+    public static synchronized CredentialHasher calibrated(long targetMillis) {
+        if (sCalibratedIterations == 0 || sCalibratedTargetMillis != targetMillis) {
+            sCalibratedIterations = calibrate(targetMillis);
+            sCalibratedTargetMillis = targetMillis;
+        }
+        return new CredentialHasher(sCalibratedIterations);
+    }
+
+    /**
+     * Measure how fast this device derives keys and pick the work factor so
+     * verifying a credential takes about the target time.
+     * @return The number of iterations, within the supported range.
+     */
+    public static int calibrate(long targetMillis) {
+        final byte[] password = new byte[PatternState.MAX_SIZE];
+        final byte[] salt = new byte[SALT_LENGTH];
+        // the first run pays for the provider lookup and the JIT
+        derive(password, salt, PROBE_ITERATIONS / 10);
+        final long start = SystemClock.elapsedRealtimeNanos();
+        derive(password, salt, PROBE_ITERATIONS);
+        final long elapsed = Math.max(1, SystemClock.elapsedRealtimeNanos() - start);
+        final long iterations = PROBE_ITERATIONS * targetMillis * 1000000L / elapsed;
+        return (int) Math.max(MIN_ITERATIONS, Math.min(MAX_ITERATIONS, iterations));
+    }
+
+    public int getIterations() {
+        return mIterations;
+    }
+
+    /**
+     * Hash a pattern with a new salt.
+     * @param packed The pattern, see {@link LockPatternUtils#patternToPacked}.
+     * @throws IllegalArgumentException if it's not a packed pattern.
+     */
+    public Record hashPattern(long packed) {
+        checkPacked(packed);
+        final byte[] credential = new byte[PatternState.MAX_SIZE];
+        final int length = LockPatternUtils.writePacked(packed, credential, 0);
+        try {
+            return hash(TYPE_PATTERN, credential, length);
+        } finally {
+            Arrays.fill(credential, (byte) 0);
+        }
+    }
+
+    /**
+     * Hash a PIN with a new salt.
+     */
+    public Record hashPin(CharSequence pin) {
+        final byte[] credential = pinBytes(pin);
+        try {
+            return hash(TYPE_PIN, credential, credential.length);
+        } finally {
+            Arrays.fill(credential, (byte) 0);
+        }
+    }
+
+    /**
+     * Hash a pattern with a new salt and the chained scheme, each cell stage
+     * running a {@link #CHAINED_STAGES_PER_TARGET}th of the work factor and
+     * the final stage all of it. This gives the record
+     * {@link CredentialPipeline} computes incrementally.
+     * @throws IllegalArgumentException if it's not a packed pattern.
+     */
+    public Record hashPatternChained(long packed) {
+        checkPacked(packed);
+        final byte[] salt = new byte[SALT_LENGTH];
+        sRandom.nextBytes(salt);
+        final int iterations = chainedIterations(mIterations);
+        return new Record(TYPE_PATTERN, SCHEME_CHAINED, iterations, salt,
+                deriveChained(packed, salt, iterations));
+    }
+
+    /**
+     * @return Whether the pattern is the one the record was hashed from.
+     * @throws IllegalArgumentException if it's not a packed pattern.
+     */
+    public static boolean verifyPattern(Record record, long packed) {
+        checkPacked(packed);
+        if (record.type != TYPE_PATTERN) {
+            return false;
+        }
+        if (record.scheme == SCHEME_CHAINED) {
+            return matches(record, deriveChained(packed, record.salt, record.iterations));
+        }
+        final byte[] credential = new byte[PatternState.MAX_SIZE];
+        final int length = LockPatternUtils.writePacked(packed, credential, 0);
+        try {
+            return verify(record, credential, length);
+        } finally {
+            Arrays.fill(credential, (byte) 0);
+        }
+    }
+
+    /**
+     * @return Whether the PIN is the one the record was hashed from.
+     */
+    public static boolean verifyPin(Record record, CharSequence pin) {
+        if (record.type != TYPE_PIN || record.scheme != SCHEME_PBKDF2) {
+            return false;
+        }
+        final byte[] credential = pinBytes(pin);
+        try {
+            return verify(record, credential, credential.length);
+        } finally {
+            Arrays.fill(credential, (byte) 0);
+        }
+    }
+
+    private static void checkPacked(long packed) {
+        // INVALID_PATTERN included, its size is out of range
+        if (PatternState.sizeOf(packed) > PatternState.MAX_SIZE) {
+            throw new IllegalArgumentException("invalid packed pattern "
+                    + Long.toHexString(packed));
+        }
+    }
+
+    private Record hash(int type, byte[] credential, int length) {
+        final byte[] salt = new byte[SALT_LENGTH];
+        sRandom.nextBytes(salt);
+        return new Record(type, SCHEME_PBKDF2, mIterations, salt,
+                derive(input(type, credential, length), salt, mIterations));
+    }
+
+    private static boolean verify(Record record, byte[] credential, int length) {
+        return matches(record, derive(input(record.type, credential, length), record.salt,
+                record.iterations));
+    }
+
+    /**
+     * @return Whether a derived hash is the one of the record.
+     */
+    static boolean matches(Record record, byte[] hash) {
+        // don't leak how many bytes matched through the timing
+        int diff = hash.length ^ record.hash.length;
+        for (int i = 0; i < hash.length && i < record.hash.length; i++) {
+            diff |= hash[i] ^ record.hash[i];
+        }
+        return diff == 0;
+    }
+
+    /**
+     * The type is part of the hashed input, a pattern and a PIN serialized
+     * to the same bytes don't hash the same.
+     */
+    private static byte[] input(int type, byte[] credential, int length) {
+        final byte[] input = new byte[length + 1];
+        input[0] = (byte) type;
+        System.arraycopy(credential, 0, input, 1, length);
+        return input;
+    }
+
+    /**
+     * @return The iterations of a chained cell stage for a work factor, the
+     * ones a chained record keeps.
+     */
+    static int chainedIterations(int iterations) {
+        // rounded up, so the final stage doesn't fall short of the work factor
+        return Math.max(MIN_ITERATIONS,
+                (iterations + CHAINED_STAGES_PER_TARGET - 1) / CHAINED_STAGES_PER_TARGET);
+    }
+
+    /**
+     * @return The iterations of the chained final stage, at least the work
+     * factor the cell stage iterations were derived from.
+     */
+    static int chainedFinalIterations(int iterations) {
+        return (int) Math.min(MAX_ITERATIONS, (long) iterations * CHAINED_STAGES_PER_TARGET);
+    }
+
+    private static byte[] deriveChained(long packed, byte[] salt, int iterations) {
+        final int size = PatternState.sizeOf(packed);
+        byte[] state = chainStart(TYPE_PATTERN);
+        for (int i = 0; i < size; i++) {
+            state = chainCell(state, PatternState.cellAt(packed, i), i, salt, iterations);
+        }
+        return chainFinish(state, size, salt, iterations);
+    }
+
+    /**
+     * @return The state of the chained scheme before the first cell.
+     */
+    static byte[] chainStart(int type) {
+        return new byte[] {(byte) type};
+    }
+
+    /**
+     * @return The state of the chained scheme once a cell is added at the
+     * given position.
+     */
+    static byte[] chainCell(byte[] state, int cell, int index, byte[] salt, int iterations) {
+        final byte[] input = Arrays.copyOf(state, state.length + 2);
+        input[state.length] = (byte) cell;
+        input[state.length + 1] = (byte) index;
+        return derive(input, salt, iterations);
+    }
+
+    /**
+     * @return The hash of the chained scheme, once all the cells are in.
+     * @param iterations The iterations of the cell stages, the final stage
+     * runs {@link #chainedFinalIterations(int)}.
+     */
+    static byte[] chainFinish(byte[] state, int size, byte[] salt, int iterations) {
+        final byte[] input = Arrays.copyOf(state, state.length + 2);
+        // can't be confused with a cell stage, whose index is below the size
+        input[state.length] = (byte) 0xff;
+        input[state.length + 1] = (byte) size;
+        return derive(input, salt, chainedFinalIterations(iterations));
+    }
+
+    private static byte[] pinBytes(CharSequence pin) {
+        final byte[] bytes = new byte[pin.length()];
+        for (int i = 0; i < bytes.length; i++) {
+            final char c = pin.charAt(i);
+            if (c > 0x7f) {
+                throw new IllegalArgumentException("PIN must be ASCII");
+            }
+            bytes[i] = (byte) c;
+        }
+        return bytes;
+    }
+
+    /**
+     * PBKDF2 (RFC 2898) with HMAC-SHA256, deriving a single block. The
+     * platform only provides PBKDF2WithHmacSHA1 on older releases.
+     * @throws CancellationException If the thread is interrupted meanwhile.
+     */
+    static byte[] derive(byte[] password, byte[] salt, int iterations) {
+        try {
+            final Mac mac = Mac.getInstance(MAC_ALGORITHM);
+            // an empty key is rejected by SecretKeySpec, HMAC pads it with zeros anyway
+            mac.init(new SecretKeySpec(password.length > 0 ? password : new byte[1],
+                    MAC_ALGORITHM));
+            final byte[] u = new byte[HASH_LENGTH];
+            final byte[] result = new byte[HASH_LENGTH];
+            mac.update(salt);
+            // block index 1, big endian
+            mac.update(new byte[] {0, 0, 0, 1});
+            mac.doFinal(u, 0);
+            System.arraycopy(u, 0, result, 0, HASH_LENGTH);
+            for (int i = 1; i < iterations; i++) {
+                if ((i & 0x3ff) == 0 && Thread.currentThread().isInterrupted()) {
+                    throw new CancellationException("key derivation interrupted");
+                }
+                mac.update(u);
+                mac.doFinal(u, 0);
+                for (int j = 0; j < HASH_LENGTH; j++) {
+                    result[j] ^= u[j];
+                }
+            }
+            Arrays.fill(u, (byte) 0);
+            Arrays.fill(password, (byte) 0);
+            return result;
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(MAC_ALGORITHM + " not available", e);
+        }
+    }
+
+    /**
+     * A hashed credential, with what is needed to verify it.
+     */
+    public static final class Record {
+        public final int type;
+        public final int scheme;
+        public final int iterations;
+        final byte[] salt;
+        final byte[] hash;
+
+        Record(int type, int scheme, int iterations, byte[] salt, byte[] hash) {
+            this.type = type;
+            this.scheme = scheme;
+            this.iterations = iterations;
+            this.salt = salt;
+            this.hash = hash;
+        }
+
+        /**
+         * @return The record in a form that can be stored, see {@link #decode}.
+         */
+        public String encode() {
+            final String version = scheme == SCHEME_CHAINED
+                    ? CHAINED_RECORD_VERSION : RECORD_VERSION;
+            return version + '$' + type + '$' + iterations + '$'
+                    + Base64.encodeToString(salt, Base64.NO_WRAP) + '$'
+                    + Base64.encodeToString(hash, Base64.NO_WRAP);
+        }
+
+        /**
+         * @return The record encoded by {@link #encode()}, or null if the
+         * string is not a valid record.
+         */
+        public static Record decode(String encoded) {
+            if (encoded == null) {
+                return null;
+            }
+            final String[] parts = encoded.split("\\$");
+            if (parts.length != 5) {
+                return null;
+            }
+            final int scheme;
+            if (RECORD_VERSION.equals(parts[0])) {
+                scheme = SCHEME_PBKDF2;
+            } else if (CHAINED_RECORD_VERSION.equals(parts[0])) {
+                scheme = SCHEME_CHAINED;
+            } else {
+                return null;
+            }
+            try {
+                final int type = Integer.parseInt(parts[1]);
+                final int iterations = Integer.parseInt(parts[2]);
+                final byte[] salt = Base64.decode(parts[3], Base64.NO_WRAP);
+                final byte[] hash = Base64.decode(parts[4], Base64.NO_WRAP);
+                return create(type, scheme, iterations, salt, hash);
+            } catch (IllegalArgumentException e) {
+                // NumberFormatException included
+                return null;
+            }
+        }
+
+        /**
+         * @return A record of the given fields, or null if they are not valid.
+         */
+        static Record create(int type, int scheme, int iterations, byte[] salt, byte[] hash) {
+            if ((type != TYPE_PATTERN && type != TYPE_PIN)
+                    || (scheme != SCHEME_PBKDF2 && scheme != SCHEME_CHAINED)
+                    || iterations < MIN_ITERATIONS || iterations > MAX_ITERATIONS
+                    || hash.length != HASH_LENGTH
+                    || (scheme == SCHEME_CHAINED && type != TYPE_PATTERN)) {
+                return null;
+            }
+            return new Record(type, scheme, iterations, salt, hash);
+        }
+    }
+}
@@ -0,0 +1,271 @@
+package com.android.internal.widget.custom;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.security.SecureRandom;
+
+/**
+ * Hashes a pattern with the chained scheme of {@link CredentialHasher} while
+ * it is being drawn: each cell's key derivation stage runs in the background
+ * as soon as the cell is added, so when the pattern is complete only the
+ * final stage is left.
+ *
+ * The pipeline either hashes a new credential, with a new salt and the
+ * calibrated work factor, or verifies against a chained record. Work done
+ * for a pattern that is reset is thrown away. Must be used from the main
+ * thread, the stages run on the worker of {@link AsyncCredentialVerifier}.
+ */
+public final class CredentialPipeline {
+    private static final String TAG = "CredentialPipeline";
+
+    private static final int SALT_LENGTH = 16;
+
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final CredentialHasher.Record mRecord;
+    private final long mTargetMillis;
+    private final byte[] mSalt;
+
+    private final Object mLock = new Object();
+    // guarded by mLock
+    private long mPattern;
+    private int mGeneration;
+    private Object mFinishListener;
+    private boolean mPumping;
+    private boolean mFailed;
+
+    // only touched by the worker
+    private int mStateGeneration = -1;
+    private byte[] mState;
+    private int mStateCells;
+    private int mIterations;
+
+    private CredentialPipeline(CredentialHasher.Record record, long targetMillis, byte[] salt) {
+        mRecord = record;
+        mTargetMillis = targetMillis;
+        mSalt = salt;
+        mIterations = record != null ? record.iterations : 0;
+    }
+
+    /**
+     * @return A pipeline hashing a new pattern with a work factor calibrated
+     * for the target latency, see {@link CredentialHasher#calibrated(long)}.
+     */
+    public static CredentialPipeline forNewCredential(long targetMillis) {
+        final byte[] salt = new byte[SALT_LENGTH];
+        new SecureRandom().nextBytes(salt);
+        return new CredentialPipeline(null, targetMillis, salt);
+    }
+
+    /**
+     * @return A pipeline verifying patterns against a record, or null if the
+     * record isn't of the chained scheme.
+     */
+    public static CredentialPipeline forRecord(CredentialHasher.Record record) {
+        if (record.type != CredentialHasher.TYPE_PATTERN
+                || record.scheme != CredentialHasher.SCHEME_CHAINED) {
+            return null;
+        }
+        return new CredentialPipeline(record, 0, record.salt);
+    }
+
+    /**
+     * @return Whether this pipeline verifies against the record.
+     */
+    public boolean isVerifying(CredentialHasher.Record record) {
+        return mRecord != null && mRecord == record;
+    }
+
+    /**
+     * Start the stage of a cell added to the pattern.
+     */
+    public void onCellAdded(int cell) {
+        synchronized (mLock) {
+            final int size = PatternState.sizeOf(mPattern);
+            if (size >= PatternState.MAX_SIZE) {
+                return;
+            }
+            mPattern = (mPattern & ~(-1L << (size * PatternState.BITS_PER_CELL)))
+                    | ((long) cell << (size * PatternState.BITS_PER_CELL))
+                    | ((long) (size + 1) << PatternState.SIZE_SHIFT);
+            pumpLocked();
+        }
+    }
+
+    /**
+     * Throw away the work done for the current pattern, and the pending
+     * final stage if any, whose listener won't be called. A pipeline that
+     * failed for the current pattern, its worker busy or a stage thrown,
+     * follows the next one again.
+     */
+    public void reset() {
+        synchronized (mLock) {
+            mGeneration++;
+            mPattern = 0;
+            mFinishListener = null;
+            // a pump still in flight picks up the new pattern, mPumping stays
+            mFailed = false;
+        }
+    }
+
+    /**
+     * @return Whether the final stage of the pattern is pending.
+     */
+    public boolean isFinishing() {
+        synchronized (mLock) {
+            return mFinishListener != null;
+        }
+    }
+
+    /**
+     * Run the final stage of the hash of a new pattern.
+     * @param packed The complete pattern, it must be the one the pipeline followed.
+     * @return false if the pipeline didn't follow that pattern, in which case
+     * the listener won't be called.
+     */
+    public boolean finishHash(long packed, AsyncCredentialVerifier.OnHashedListener listener) {
+        return mRecord == null && finishInternal(packed, listener);
+    }
+
+    /**
+     * Run the final stage of the verification of a pattern.
+     * @param packed The complete pattern, it must be the one the pipeline followed.
+     * @return false if the pipeline didn't follow that pattern, in which case
+     * the listener won't be called.
+     */
+    public boolean finishVerify(long packed,
+            AsyncCredentialVerifier.OnVerifiedListener listener) {
+        return mRecord != null && finishInternal(packed, listener);
+    }
+
+    private boolean finishInternal(long packed, Object listener) {
+        synchronized (mLock) {
+            if (mFailed || packed != mPattern) {
+                return false;
+            }
+            mFinishListener = listener;
+            pumpLocked();
+            return !mFailed;
+        }
+    }
+
+    private void pumpLocked() {
+        if (!mPumping && !mFailed) {
+            mPumping = true;
+            if (!AsyncCredentialVerifier.execute(mPump)) {
+                mPumping = false;
+                mFailed = true;
+            }
+        }
+    }
+
+    private final Runnable mPump = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                pump();
+            } catch (RuntimeException e) {
+                Log.w(TAG, "pipeline failed", e);
+                final int generation;
+                final Object listener;
+                synchronized (mLock) {
+                    mPumping = false;
+                    mFailed = true;
+                    generation = mGeneration;
+                    listener = mFinishListener;
+                    mFinishListener = null;
+                }
+                if (listener != null) {
+                    // the final stage was requested, its caller has to hear back
+                    post(generation, listener, false, null);
+                }
+            }
+        }
+    };
+
+    /**
+     * Runs the stages until they caught up with the cells added, and the
+     * final stage once it is requested.
+     */
+    private void pump() {
+        if (mIterations == 0) {
+            mIterations = CredentialHasher.chainedIterations(
+                    CredentialHasher.calibrated(mTargetMillis).getIterations());
+        }
+        while (true) {
+            final int generation;
+            final long pattern;
+            final Object listener;
+            synchronized (mLock) {
+                generation = mGeneration;
+                pattern = mPattern;
+                listener = mFinishListener;
+                if (mStateGeneration == generation
+                        && mStateCells == PatternState.sizeOf(pattern) && listener == null) {
+                    mPumping = false;
+                    return;
+                }
+            }
+
+            if (mStateGeneration != generation) {
+                // a new pattern, start over
+                mState = CredentialHasher.chainStart(CredentialHasher.TYPE_PATTERN);
+                mStateCells = 0;
+                mStateGeneration = generation;
+            }
+            final int size = PatternState.sizeOf(pattern);
+            if (mStateCells < size) {
+                mState = CredentialHasher.chainCell(mState,
+                        PatternState.cellAt(pattern, mStateCells), mStateCells, mSalt, mIterations);
+                mStateCells++;
+                continue;
+            }
+
+            final byte[] hash = CredentialHasher.chainFinish(mState, size, mSalt, mIterations);
+            synchronized (mLock) {
+                if (mGeneration == generation && mFinishListener == listener) {
+                    mFinishListener = null;
+                }
+            }
+            deliver(generation, listener, hash);
+        }
+    }
+
+    private void deliver(final int generation, final Object listener, byte[] hash) {
+        final CredentialHasher.Record record;
+        final boolean matched;
+        if (mRecord != null) {
+            record = mRecord;
+            matched = CredentialHasher.matches(mRecord, hash);
+        } else {
+            record = new CredentialHasher.Record(CredentialHasher.TYPE_PATTERN,
+                    CredentialHasher.SCHEME_CHAINED, mIterations, mSalt.clone(), hash);
+            matched = true;
+        }
+        post(generation, listener, matched, record);
+    }
+
+    /**
+     * Call the listener on the main thread, unless the pattern was reset meanwhile.
+     */
+    private void post(final int generation, final Object listener, final boolean matched,
+            final CredentialHasher.Record record) {
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (mLock) {
+                    if (generation != mGeneration) {
+                        // reset meanwhile
+                        return;
+                    }
+                }
+                if (listener instanceof AsyncCredentialVerifier.OnVerifiedListener) {
+                    ((AsyncCredentialVerifier.OnVerifiedListener) listener).onVerified(matched);
+                } else {
+                    ((AsyncCredentialVerifier.OnHashedListener) listener).onHashed(record);
+                }
+            }
+        });
+    }
+}
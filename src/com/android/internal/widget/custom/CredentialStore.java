@@ -0,0 +1,307 @@
+package com.android.internal.widget.custom;
+
+import android.content.Context;
+import android.os.Process;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Keeps the enrolled credential, a {@link CredentialHasher.Record}, in the
+ * app's files directory.
+ *
+ * Reads and writes happen on a background thread: the record is loaded once
+ * into memory when the store is first used, and {@link #getRecord()} only
+ * returns that copy. {@link #save} updates the copy right away and writes
+ * the file later, so enrollment can finish without waiting for storage.
+ *
+ * A write goes to a temporary file which is synced and then renamed over the
+ * previous one, so a crash leaves either the old or the new record, never a
+ * torn one. Consecutive saves are coalesced into one write of the latest.
+ */
+public final class CredentialStore {
+    private static final String TAG = "CredentialStore";
+
+    private static final String FILE_NAME = "credential";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    // "SYCR"
+    private static final int MAGIC = 0x53594352;
+    private static final int FORMAT_VERSION = 1;
+    // magic, version, length, then the body and its crc
+    private static final int HEADER_SIZE = 12;
+    private static final int CRC_SIZE = 8;
+    private static final int MAX_FIELD_LENGTH = 64;
+
+    private static CredentialStore sInstance;
+
+    private final File mFile;
+    private final File mTempFile;
+    private final ThreadPoolExecutor mExecutor;
+    private volatile boolean mLoaded;
+
+    private final Object mLock = new Object();
+    // guarded by mLock
+    private CredentialHasher.Record mRecord;
+    private CredentialHasher.Record mPendingWrite;
+    private boolean mWriteScheduled;
+    private boolean mPendingDelete;
+
+    /**
+     * @return The store of the app, which starts loading the record if it's
+     * the first use.
+     */
+    public static synchronized CredentialStore getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new CredentialStore(context.getApplicationContext().getFilesDir());
+        }
+        return sInstance;
+    }
+
+    /**
+     * Exposed for tests, the app uses {@link #getInstance(Context)}.
+     */
+    CredentialStore(File directory) {
+        mFile = new File(directory, FILE_NAME);
+        mTempFile = new File(directory, FILE_NAME + TEMP_SUFFIX);
+        mExecutor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    @Override
+                    public Thread newThread(final Runnable r) {
+                        final Thread thread = new Thread(new Runnable() {
+                            @Override
+                            public void run() {
+                                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                                r.run();
+                            }
+                        }, TAG);
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final CredentialHasher.Record record = read();
+                synchronized (mLock) {
+                    // a save or clear made while loading wins, its write runs after this
+                    if (mRecord == null && !mWriteScheduled) {
+                        mRecord = record;
+                    }
+                }
+                mLoaded = true;
+            }
+        });
+    }
+
+    /**
+     * @return Whether the record was loaded, until then {@link #getRecord()}
+     * returns null even if a credential is enrolled.
+     */
+    public boolean isLoaded() {
+        return mLoaded;
+    }
+
+    /**
+     * @return The enrolled credential, or null if there is none or it's not
+     * loaded yet. Never reads storage.
+     */
+    public CredentialHasher.Record getRecord() {
+        synchronized (mLock) {
+            return mRecord;
+        }
+    }
+
+    /**
+     * Enroll a credential, replacing the previous one. The record is
+     * returned by {@link #getRecord()} right away and written in the background.
+     */
+    public void save(CredentialHasher.Record record) {
+        if (record == null) {
+            throw new IllegalArgumentException("record is null");
+        }
+        synchronized (mLock) {
+            mRecord = record;
+            mPendingWrite = record;
+            mPendingDelete = false;
+            scheduleWriteLocked();
+        }
+    }
+
+    /**
+     * Remove the enrolled credential, in the background.
+     */
+    public void clear() {
+        synchronized (mLock) {
+            mRecord = null;
+            mPendingWrite = null;
+            mPendingDelete = true;
+            scheduleWriteLocked();
+        }
+    }
+
+    private void scheduleWriteLocked() {
+        if (!mWriteScheduled) {
+            mWriteScheduled = true;
+            mExecutor.execute(mWrite);
+        }
+    }
+
+    private final Runnable mWrite = new Runnable() {
+        @Override
+        public void run() {
+            final CredentialHasher.Record record;
+            final boolean delete;
+            synchronized (mLock) {
+                record = mPendingWrite;
+                delete = mPendingDelete;
+                mPendingWrite = null;
+                mPendingDelete = false;
+                mWriteScheduled = false;
+            }
+            if (delete) {
+                if (mFile.exists() && !mFile.delete()) {
+                    Log.w(TAG, "couldn't delete " + mFile);
+                }
+            } else if (record != null) {
+                write(record);
+            }
+        }
+    };
+
+    private void write(CredentialHasher.Record record) {
+        final ByteBuffer buffer = serialize(record);
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(mTempFile);
+            final FileChannel channel = out.getChannel();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            // data and size on disk before the rename makes them visible
+            channel.force(true);
+            out.close();
+            out = null;
+            if (!mTempFile.renameTo(mFile)) {
+                throw new IOException("couldn't rename " + mTempFile + " to " + mFile);
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "couldn't write the credential", e);
+            mTempFile.delete();
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+    }
+
+    private CredentialHasher.Record read() {
+        // a temporary file left by a crash is incomplete, the previous record stands
+        mTempFile.delete();
+        if (!mFile.exists()) {
+            return null;
+        }
+        FileInputStream in = null;
+        try {
+            in = new FileInputStream(mFile);
+            final FileChannel channel = in.getChannel();
+            final long size = channel.size();
+            if (size < HEADER_SIZE + CRC_SIZE || size > HEADER_SIZE + 16 + 2 * MAX_FIELD_LENGTH
+                    + CRC_SIZE) {
+                Log.w(TAG, "bad credential file size " + size);
+                return null;
+            }
+            final ByteBuffer buffer = ByteBuffer.allocate((int) size);
+            while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+                // keep reading
+            }
+            buffer.flip();
+            return deserialize(buffer);
+        } catch (IOException e) {
+            Log.e(TAG, "couldn't read the credential", e);
+            return null;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+    }
+
+    /**
+     * Only what verifying needs is stored. The length of the credential is
+     * left out on purpose, it would narrow a search down to the patterns or
+     * PINs of that length.
+     */
+    private static ByteBuffer serialize(CredentialHasher.Record record) {
+        final int length = 16 + record.salt.length + record.hash.length;
+        final ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + length + CRC_SIZE);
+        buffer.putInt(MAGIC).putInt(FORMAT_VERSION).putInt(length);
+        buffer.putInt(record.type).putInt(record.scheme).putInt(record.iterations);
+        buffer.put((byte) record.salt.length).put(record.salt);
+        buffer.put((byte) record.hash.length).put(record.hash);
+        // pad the two length bytes to an int
+        buffer.putShort((short) 0);
+        buffer.putLong(crc(buffer.array(), HEADER_SIZE, length));
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * @return The record, or null if the data is not a valid record.
+     */
+    private static CredentialHasher.Record deserialize(ByteBuffer buffer) {
+        if (buffer.remaining() < HEADER_SIZE + CRC_SIZE || buffer.getInt() != MAGIC
+                || buffer.getInt() != FORMAT_VERSION) {
+            return null;
+        }
+        final int length = buffer.getInt();
+        if (length < 16 || buffer.remaining() != length + CRC_SIZE) {
+            return null;
+        }
+        final long crc = buffer.getLong(HEADER_SIZE + length);
+        if (crc != crc(buffer.array(), HEADER_SIZE, length)) {
+            Log.w(TAG, "credential file is corrupt");
+            return null;
+        }
+        final int type = buffer.getInt();
+        final int scheme = buffer.getInt();
+        final int iterations = buffer.getInt();
+        final int saltLength = buffer.get() & 0xff;
+        if (saltLength > MAX_FIELD_LENGTH || saltLength > length - 16) {
+            return null;
+        }
+        final byte[] salt = new byte[saltLength];
+        buffer.get(salt);
+        final int hashLength = buffer.get() & 0xff;
+        if (hashLength != length - 16 - saltLength) {
+            return null;
+        }
+        final byte[] hash = new byte[hashLength];
+        buffer.get(hash);
+        return CredentialHasher.Record.create(type, scheme, iterations, salt, hash);
+    }
+
+    private static long crc(byte[] data, int offset, int length) {
+        final CRC32 crc = new CRC32();
+        crc.update(data, offset, length);
+        return crc.getValue();
+    }
+}
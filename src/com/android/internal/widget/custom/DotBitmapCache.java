@@ -0,0 +1,212 @@
+package com.android.internal.widget.custom;
+
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.AsyncTask;
+import android.util.Log;
+import android.view.View;
+
+/**
+ * Bounded LRU cache of the decoded and pre-scaled dot bitmaps drawn by the
+ * bitmap lock pattern.
+ *
+ * Entries are keyed by (dot index, display mode, quantized scale) and live in
+ * a flat array, so a lookup on the draw path is an index computation and
+ * never decodes or allocates. The bitmaps are decoded on a background thread
+ * by {@link #load}.
+ */
+final class DotBitmapCache {
+    private static final String TAG = "DotBitmapCache";
+
+    /**
+     * Range of scales the dots are drawn with, see the pulse animation in
+     * {@link LockPatternView}.
+     */
+    static final float MIN_SCALE = 1.0f;
+    static final float MAX_SCALE = 1.2f;
+    static final int SCALE_STEPS = 5;
+
+    private static final int DEFAULT_MAX_BYTES = 4 * 1024 * 1024;
+
+    private final int[] mDotIds;
+    private final int mErrorId;
+    private final int mMaxBytes;
+
+    // one slot per (dot index | error, scale step)
+    private final Bitmap[] mBitmaps;
+    private final long[] mLastUsed;
+    private long mClock;
+    private int mBytes;
+
+    private int mBaseSize;
+    private int mGeneration;
+
+    /**
+     * @param dotIds The resources of the dots, one per position in the pattern.
+     * @param errorId The resource drawn for every dot when the pattern is wrong.
+     */
+    DotBitmapCache(int[] dotIds, int errorId) {
+        this(dotIds, errorId, DEFAULT_MAX_BYTES);
+    }
+
+    DotBitmapCache(int[] dotIds, int errorId, int maxBytes) {
+        mDotIds = dotIds;
+        mErrorId = errorId;
+        mMaxBytes = maxBytes;
+        final int slots = (dotIds.length + 1) * SCALE_STEPS;
+        mBitmaps = new Bitmap[slots];
+        mLastUsed = new long[slots];
+    }
+
+    private int slot(int index, boolean error, int step) {
+        return (error ? mDotIds.length : index) * SCALE_STEPS + step;
+    }
+
+    private static int quantize(float scale) {
+        int step = Math.round((scale - MIN_SCALE) * (SCALE_STEPS - 1) / (MAX_SCALE - MIN_SCALE));
+        return Math.max(0, Math.min(SCALE_STEPS - 1, step));
+    }
+
+    private static float scaleForStep(int step) {
+        return MIN_SCALE + (MAX_SCALE - MIN_SCALE) * step / (SCALE_STEPS - 1);
+    }
+
+    /**
+     * Return the bitmap closest to the requested scale. The returned bitmap
+     * may be of a neighbouring scale step if the exact one was evicted, so
+     * callers should draw it into a destination rectangle of the wanted size.
+     *
+     * @return The bitmap, or null if the dots have not been decoded yet.
+     */
+    Bitmap get(int index, boolean error, float scale) {
+        if (index < 0 || index >= mDotIds.length) {
+            return null;
+        }
+        final int step = quantize(scale);
+        for (int d = 0; d < SCALE_STEPS; d++) {
+            int s = step - d;
+            if (s >= 0 && mBitmaps[slot(index, error, s)] != null) {
+                return touch(slot(index, error, s));
+            }
+            s = step + d;
+            if (d != 0 && s < SCALE_STEPS && mBitmaps[slot(index, error, s)] != null) {
+                return touch(slot(index, error, s));
+            }
+        }
+        return null;
+    }
+
+    private Bitmap touch(int slot) {
+        mLastUsed[slot] = ++mClock;
+        return mBitmaps[slot];
+    }
+
+    private void put(int slot, Bitmap bitmap) {
+        final int bytes = bitmap.getByteCount();
+        while (mBytes + bytes > mMaxBytes && evictEldest()) {
+            // keep evicting
+        }
+        mBitmaps[slot] = bitmap;
+        mBytes += bytes;
+        touch(slot);
+    }
+
+    private boolean evictEldest() {
+        int eldest = -1;
+        for (int i = 0; i < mBitmaps.length; i++) {
+            if (mBitmaps[i] != null && (eldest < 0 || mLastUsed[i] < mLastUsed[eldest])) {
+                eldest = i;
+            }
+        }
+        if (eldest < 0) {
+            return false;
+        }
+        // don't recycle, the bitmap may still be referenced by a pending display list
+        mBytes -= mBitmaps[eldest].getByteCount();
+        mBitmaps[eldest] = null;
+        return true;
+    }
+
+    /**
+     * Drop all entries and any load in flight.
+     */
+    void clear() {
+        mGeneration++;
+        mBaseSize = 0;
+        for (int i = 0; i < mBitmaps.length; i++) {
+            mBitmaps[i] = null;
+        }
+        mBytes = 0;
+    }
+
+    /**
+     * Decode and scale all dots for the given size on a background thread.
+     * The result is installed on the thread of the target view, which is then
+     * invalidated. Nothing happens if the cache already holds that size.
+     *
+     * @param baseSize The width of a dot drawn at scale 1.
+     */
+    void load(final Resources res, final int baseSize, final View target) {
+        if (baseSize <= 0 || baseSize == mBaseSize) {
+            return;
+        }
+        clear();
+        mBaseSize = baseSize;
+        final int generation = mGeneration;
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                final Bitmap[] decoded = decodeAll(res, baseSize);
+                target.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (generation != mGeneration) {
+                            // size changed or bitmap lock turned off meanwhile
+                            return;
+                        }
+                        for (int i = 0; i < decoded.length; i++) {
+                            if (decoded[i] != null) {
+                                put(i, decoded[i]);
+                            }
+                        }
+                        target.invalidate();
+                    }
+                });
+            }
+        });
+    }
+
+    private Bitmap[] decodeAll(Resources res, int baseSize) {
+        final Bitmap[] result = new Bitmap[mBitmaps.length];
+        final BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inMutable = true;
+        Bitmap scratch = null;
+        for (int i = 0; i <= mDotIds.length; i++) {
+            final int id = i < mDotIds.length ? mDotIds[i] : mErrorId;
+            // all dots have the same dimensions, decode them into the same buffer
+            options.inBitmap = scratch;
+            Bitmap source;
+            try {
+                source = BitmapFactory.decodeResource(res, id, options);
+            } catch (IllegalArgumentException e) {
+                options.inBitmap = null;
+                source = BitmapFactory.decodeResource(res, id, options);
+            }
+            if (source == null) {
+                Log.w(TAG, "unable to decode dot " + i);
+                continue;
+            }
+            scratch = source;
+            for (int step = 0; step < SCALE_STEPS; step++) {
+                final int width = Math.round(baseSize * scaleForStep(step));
+                result[i * SCALE_STEPS + step] =
+                        Bitmap.createScaledBitmap(source, width, width, true);
+            }
+        }
+        if (scratch != null) {
+            scratch.recycle();
+        }
+        return result;
+    }
+}
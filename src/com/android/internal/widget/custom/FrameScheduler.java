@@ -0,0 +1,85 @@
+package com.android.internal.widget.custom;
+
+import android.view.Choreographer;
+
+/**
+ * Runs a callback once per display frame, on {@link Choreographer} frame
+ * callbacks, for as long as the callback asks for more frames. The frame rate
+ * can optionally be capped, in which case frames are skipped.
+ *
+ * Must be used from the UI thread.
+ */
+final class FrameScheduler implements Choreographer.FrameCallback {
+
+    interface Callback {
+        /**
+         * Called once per frame while the scheduler is running.
+         * @param frameTimeNanos The time of the frame, in the {@link System#nanoTime()}
+         * time base.
+         * @return Whether another frame is needed.
+         */
+        boolean onFrame(long frameTimeNanos);
+    }
+
+    // frames arrive with some jitter, don't drop one that is just a bit early
+    private static final long FRAME_SLOP_NANOS = 2000000;
+
+    private final Choreographer mChoreographer = Choreographer.getInstance();
+    private final Callback mCallback;
+
+    private boolean mScheduled;
+    private long mMinFrameIntervalNanos;
+    private long mLastFrameTimeNanos;
+
+    FrameScheduler(Callback callback) {
+        mCallback = callback;
+    }
+
+    /**
+     * @param framesPerSecond The maximum number of frames per second, or 0 to
+     * run on every frame.
+     */
+    void setMaxFrameRate(int framesPerSecond) {
+        mMinFrameIntervalNanos = framesPerSecond > 0 ? 1000000000L / framesPerSecond : 0;
+    }
+
+    /**
+     * Schedule the callback for the next frame, if it is not already.
+     */
+    void start() {
+        if (!mScheduled) {
+            mScheduled = true;
+            mChoreographer.postFrameCallback(this);
+        }
+    }
+
+    /**
+     * Remove any scheduled callback.
+     */
+    void stop() {
+        if (mScheduled) {
+            mScheduled = false;
+            mChoreographer.removeFrameCallback(this);
+        }
+        mLastFrameTimeNanos = 0;
+    }
+
+    boolean isRunning() {
+        return mScheduled;
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        mScheduled = false;
+        if (mMinFrameIntervalNanos > 0 && mLastFrameTimeNanos != 0
+                && frameTimeNanos - mLastFrameTimeNanos < mMinFrameIntervalNanos - FRAME_SLOP_NANOS) {
+            // capped, wait for a later frame
+            start();
+            return;
+        }
+        mLastFrameTimeNanos = frameTimeNanos;
+        if (mCallback.onFrame(frameTimeNanos)) {
+            start();
+        }
+    }
+}
@@ -79,8 +79,61 @@ public class LockNumberView extends RelativeLayout implements View.OnClickListen
         mEnable = enable;
     }
 
+    private AsyncCredentialVerifier mVerifier;
+
+    /**
+     * Check the current password against a hashed credential off the UI
+     * thread, see {@link AsyncCredentialVerifier}. Keys are ignored until the
+     * listener is called. The check is cancelled, and the listener not
+     * called, when the view is detached.
+     *
+     * @return false if the check couldn't be queued, the listener won't be called.
+     */
+    public boolean verifyPasswdAsync(CredentialHasher.Record record,
+            AsyncCredentialVerifier.OnVerifiedListener listener) {
+        return getVerifier().verifyPin(record, mPasswd, listener);
+    }
+
+    /**
+     * Hash the current password off the UI thread, with a work factor
+     * calibrated for the target latency, see {@link CredentialHasher#calibrated(long)}.
+     * Keys are ignored, and the request cancelled, as for {@link #verifyPasswdAsync}.
+     *
+     * @return false if the request couldn't be queued, the listener won't be called.
+     */
+    public boolean hashPasswdAsync(long targetMillis,
+            AsyncCredentialVerifier.OnHashedListener listener) {
+        return getVerifier().hashPin(targetMillis, mPasswd, listener);
+    }
+
+    /**
+     * Cancel the pending verification or hashing, if any, without calling its listener.
+     */
+    public void cancelVerification() {
+        if (mVerifier != null) {
+            mVerifier.cancel();
+        }
+    }
+
+    private AsyncCredentialVerifier getVerifier() {
+        if (mVerifier == null) {
+            mVerifier = new AsyncCredentialVerifier();
+        }
+        return mVerifier;
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        super.onDetachedFromWindow();
+        cancelVerification();
+    }
+
     @Override
     public void onClick(View v) {
+        if (mVerifier != null && mVerifier.isPending()) {
+            // the password is being checked
+            return;
+        }
         int len = mPasswd.length();
         if(v.getId() == R.id.num_delete){
             if(len > 0) mPasswd = mPasswd.substring(0, len-1);
@@ -21,8 +21,11 @@
 
 package com.android.internal.widget.custom;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Random;
 
 
 /**
@@ -35,6 +38,29 @@ public class LockPatternUtils {
      */
     public static final int MIN_LOCK_PATTERN_SIZE = 4;
 
+    /**
+     * Returned by the packed pattern readers for malformed input. It is not a
+     * valid packed pattern, its size is out of range.
+     */
+    public static final long INVALID_PATTERN = -1L;
+
+    /**
+     * Maps a serialized byte to the value of its cell, or -1 if it is not a cell.
+     */
+    private static final byte[] sByteToCell = new byte[256];
+
+    /** The serialized form is ASCII digits, whatever the platform charset */
+    private static final Charset US_ASCII = Charset.forName("US-ASCII");
+
+    static {
+        for (int i = 0; i < sByteToCell.length; i++) {
+            sByteToCell[i] = -1;
+        }
+        for (int cell = 0; cell < PatternState.MAX_SIZE; cell++) {
+            sByteToCell['1' + cell] = (byte) cell;
+        }
+    }
+
     /**
      * Serialize a pattern.
      * @param pattern The pattern.
@@ -44,33 +70,497 @@ public class LockPatternUtils {
         if (pattern == null) {
             return "";
         }
-        final int patternSize = pattern.size();
-
-        byte[] res = new byte[patternSize];
-        for (int i = 0; i < patternSize; i++) {
-            LockPatternView.Cell cell = pattern.get(i);
-            res[i] = (byte) (cell.getRow() * 3 + cell.getColumn() + '1');
-        }
-        return new String(res);
+        return packedToString(patternToPacked(pattern));
     }
 
     /**
      * Deserialize a pattern.
      * @param string The pattern serialized with {@link #patternToString}
-     * @return The pattern.
+     * @return The pattern, or null if the string is not a valid pattern.
      */
     public static List<LockPatternView.Cell> stringToPattern(String string) {
         if (string == null) {
             return null;
         }
+        final long packed = stringToPacked(string);
+        if (packed == INVALID_PATTERN) {
+            return null;
+        }
+        return packedToPattern(packed);
+    }
 
-        List<LockPatternView.Cell> result = new ArrayList<LockPatternView.Cell>();;
+    /**
+     * Pack a pattern into a long, in the layout of {@link PatternState#toPacked()}:
+     * the cells 4 bits each from the lowest bits and the number of cells in
+     * the top 4 bits.
+     * @throws IllegalArgumentException If a cell appears twice or is not of
+     * the 3 X 3 grid.
+     */
+    public static long patternToPacked(List<LockPatternView.Cell> pattern) {
+        final int size = pattern.size();
+        if (size > PatternState.MAX_SIZE) {
+            throw new IllegalArgumentException("pattern is too long: " + size);
+        }
+        long packed = (long) size << PatternState.SIZE_SHIFT;
+        int visited = 0;
+        for (int i = 0; i < size; i++) {
+            if (pattern.get(i).getGridSize() != 3) {
+                throw new IllegalArgumentException("cell " + pattern.get(i)
+                        + " is not of the 3 X 3 grid");
+            }
+            final int cell = pattern.get(i).getValue();
+            if ((visited & (1 << cell)) != 0) {
+                throw new IllegalArgumentException("cell " + cell + " appears twice");
+            }
+            visited |= 1 << cell;
+            packed |= (long) cell << (i * PatternState.BITS_PER_CELL);
+        }
+        return packed;
+    }
 
-        final byte[] bytes = string.getBytes();
-        for (int i = 0; i < bytes.length; i++) {
-            byte b = (byte) (bytes[i] - '1');
-            result.add(LockPatternView.Cell.of(b / 3, b % 3));
+    /**
+     * @return The cells of a packed pattern.
+     */
+    public static List<LockPatternView.Cell> packedToPattern(long packed) {
+        final int size = checkedSize(packed);
+        final List<LockPatternView.Cell> result = new ArrayList<LockPatternView.Cell>(size);
+        for (int i = 0; i < size; i++) {
+            final int cell = PatternState.cellAt(packed, i);
+            result.add(LockPatternView.Cell.of(cell / 3, cell % 3));
         }
         return result;
     }
+
+    /**
+     * @return The packed pattern in the form of {@link #patternToString}.
+     */
+    public static String packedToString(long packed) {
+        final byte[] res = new byte[checkedSize(packed)];
+        writePacked(packed, res, 0);
+        return new String(res, US_ASCII);
+    }
+
+    /**
+     * Parse a pattern in the form of {@link #patternToString}, without
+     * going through its bytes.
+     * @return The packed pattern, or {@link #INVALID_PATTERN}.
+     */
+    public static long stringToPacked(CharSequence string) {
+        final int length = string.length();
+        long packed = startPacked(length);
+        for (int i = 0; i < length && packed != INVALID_PATTERN; i++) {
+            packed = packSymbol(packed, i, string.charAt(i));
+        }
+        return packed;
+    }
+
+    /**
+     * Write a packed pattern in the form of {@link #patternToString}, one
+     * byte per cell.
+     * @return The number of bytes written.
+     * @throws IllegalArgumentException if it's not a packed pattern.
+     */
+    public static int writePacked(long packed, byte[] dst, int offset) {
+        final int size = checkedSize(packed);
+        for (int i = 0; i < size; i++) {
+            dst[offset + i] = (byte) ('1' + PatternState.cellAt(packed, i));
+        }
+        return size;
+    }
+
+    /**
+     * Write a packed pattern in the form of {@link #patternToString} at the
+     * position of the buffer, which is advanced.
+     * @return The number of bytes written.
+     * @throws IllegalArgumentException if it's not a packed pattern.
+     */
+    public static int writePacked(long packed, ByteBuffer dst) {
+        final int size = checkedSize(packed);
+        for (int i = 0; i < size; i++) {
+            dst.put((byte) ('1' + PatternState.cellAt(packed, i)));
+        }
+        return size;
+    }
+
+    /**
+     * Read a pattern written by {@link #writePacked(long, byte[], int)}.
+     * @return The packed pattern, or {@link #INVALID_PATTERN} if the bytes
+     * are not a valid pattern.
+     */
+    public static long readPacked(byte[] src, int offset, int length) {
+        long packed = startPacked(length);
+        for (int i = 0; i < length && packed != INVALID_PATTERN; i++) {
+            packed = packSymbol(packed, i, src[offset + i] & 0xff);
+        }
+        return packed;
+    }
+
+    /**
+     * Read a pattern from the remaining bytes of a buffer, which are consumed.
+     * @return The packed pattern, or {@link #INVALID_PATTERN} if the bytes
+     * are not a valid pattern.
+     */
+    public static long readPacked(ByteBuffer src) {
+        final int length = src.remaining();
+        long packed = startPacked(length);
+        for (int i = 0; i < length && packed != INVALID_PATTERN; i++) {
+            packed = packSymbol(packed, i, src.get() & 0xff);
+        }
+        // consumed even when malformed
+        src.position(src.limit());
+        return packed;
+    }
+
+    /**
+     * Start packing a serialized pattern of the given length, see
+     * {@link #packSymbol}.
+     * @return The packed pattern without cells, or {@link #INVALID_PATTERN}
+     * if the length is out of range.
+     */
+    /**
+     * @return The number of cells of a packed pattern.
+     * @throws IllegalArgumentException if it's out of range, as for
+     * {@link #INVALID_PATTERN}.
+     */
+    private static int checkedSize(long packed) {
+        final int size = PatternState.sizeOf(packed);
+        if (size > PatternState.MAX_SIZE) {
+            throw new IllegalArgumentException("invalid packed pattern "
+                    + Long.toHexString(packed));
+        }
+        return size;
+    }
+
+    private static long startPacked(int length) {
+        if (length > PatternState.MAX_SIZE) {
+            return INVALID_PATTERN;
+        }
+        return (long) length << PatternState.SIZE_SHIFT;
+    }
+
+    /**
+     * Validate and pack the symbol at the given position of a serialized
+     * pattern, the readers' single definition of the serialized form.
+     * @param packed The pattern with the cells before the position packed.
+     * @return The pattern with this cell packed, or {@link #INVALID_PATTERN}
+     * if the symbol is not a cell or one already in the pattern.
+     */
+    private static long packSymbol(long packed, int index, int symbol) {
+        final int cell = symbol < sByteToCell.length ? sByteToCell[symbol] : -1;
+        if (cell < 0) {
+            return INVALID_PATTERN;
+        }
+        for (int i = 0; i < index; i++) {
+            if (PatternState.cellAt(packed, i) == cell) {
+                return INVALID_PATTERN;
+            }
+        }
+        return packed | ((long) cell << (index * PatternState.BITS_PER_CELL));
+    }
+
+    /**
+     * @return Whether two packed patterns hold the same cells in the same
+     * order. A value whose size is out of range, {@link #INVALID_PATTERN}
+     * included, equals none.
+     */
+    public static boolean packedEquals(long a, long b) {
+        // the bits past the last cell are always clear
+        return a == b && PatternState.sizeOf(a) <= PatternState.MAX_SIZE;
+    }
+
+    /**
+     * @return A hash code of a packed pattern, consistent with {@link #packedEquals}.
+     */
+    public static int packedHashCode(long packed) {
+        return (int) (packed ^ (packed >>> 32));
+    }
+
+    /**
+     * @return The number of valid patterns, of at least
+     * {@link #MIN_LOCK_PATTERN_SIZE} cells, so the range of the pattern ranks.
+     */
+    public static int getPatternCount() {
+        return RankTables.sPatternCount;
+    }
+
+    /**
+     * Rank a packed pattern among the valid patterns, see {@link PatternEnumerator}:
+     * each pattern comes before its extensions, and those are ordered by
+     * their next cell.
+     * @return The rank, in [0, {@link #getPatternCount()}), or -1 if the
+     * pattern is not valid.
+     */
+    public static int packedToRank(long packed) {
+        final int size = PatternState.sizeOf(packed);
+        final long cells = packed & ~(-1L << PatternState.SIZE_SHIFT);
+        // no bits past the last cell
+        if (size < MIN_LOCK_PATTERN_SIZE || size > PatternState.MAX_SIZE
+                || (cells >>> (size * PatternState.BITS_PER_CELL)) != 0) {
+            return -1;
+        }
+        final int[] completions = RankTables.sCompletions;
+        int rank = 0;
+        int visited = 0;
+        int last = -1;
+        for (int i = 0; i < size; i++) {
+            final int cell = PatternState.cellAt(packed, i);
+            if (cell >= PatternState.MAX_SIZE || (visited & (1 << cell)) != 0
+                    || (last >= 0 && !PatternRules.GRID_3.isDirect(last, cell, visited))) {
+                return -1;
+            }
+            if (i >= MIN_LOCK_PATTERN_SIZE) {
+                // the prefix itself comes first
+                rank++;
+            }
+            // then the patterns going on with a lower cell
+            for (int lower = 0; lower < cell; lower++) {
+                if ((visited & (1 << lower)) == 0
+                        && (last < 0 || PatternRules.GRID_3.isDirect(last, lower, visited))) {
+                    rank += completions[completionIndex(visited | (1 << lower), lower)];
+                }
+            }
+            visited |= 1 << cell;
+            last = cell;
+        }
+        return rank;
+    }
+
+    /**
+     * @return The valid packed pattern of a rank, see {@link #packedToRank(long)}.
+     * @throws IllegalArgumentException if the rank is out of range.
+     */
+    public static long rankToPacked(int rank) {
+        if (rank < 0 || rank >= RankTables.sPatternCount) {
+            throw new IllegalArgumentException("rank out of range: " + rank);
+        }
+        final int[] completions = RankTables.sCompletions;
+        long packed = 0;
+        int visited = 0;
+        int last = -1;
+        int size = 0;
+        while (true) {
+            if (size >= MIN_LOCK_PATTERN_SIZE) {
+                if (rank == 0) {
+                    break;
+                }
+                rank--;
+            }
+            int cell = 0;
+            for (; cell < PatternState.MAX_SIZE; cell++) {
+                if ((visited & (1 << cell)) != 0
+                        || (last >= 0 && !PatternRules.GRID_3.isDirect(last, cell, visited))) {
+                    continue;
+                }
+                final int count = completions[completionIndex(visited | (1 << cell), cell)];
+                if (rank < count) {
+                    break;
+                }
+                rank -= count;
+            }
+            packed |= (long) cell << (size * PatternState.BITS_PER_CELL);
+            visited |= 1 << cell;
+            last = cell;
+            size++;
+        }
+        return packed | ((long) size << PatternState.SIZE_SHIFT);
+    }
+
+    /**
+     * @return A valid packed pattern drawn uniformly at random.
+     */
+    public static long randomPattern(Random random) {
+        return rankToPacked(random.nextInt(RankTables.sPatternCount));
+    }
+
+    /**
+     * Estimates the strength of a pattern as its cells are added, in constant
+     * time per cell and without allocating: every move is scored from tables
+     * precomputed for each pair of cells.
+     *
+     * The score adds, for each move, points for its length, for knight moves
+     * and for moves crossing a cell already in the pattern, and points for the
+     * turn it makes from the previous move. A cell filled in between two
+     * others, see {@link PatternRules#between}, costs points since it wasn't
+     * chosen.
+     */
+    public static final class StrengthMeter {
+        public static final int STRENGTH_WEAK = 0;
+        public static final int STRENGTH_MEDIUM = 1;
+        public static final int STRENGTH_STRONG = 2;
+
+        // about 6% of the valid patterns score as weak, and half as strong
+        private static final int MEDIUM_SCORE = 16;
+        private static final int STRONG_SCORE = 26;
+
+        private static final int CELL_POINTS = 1;
+        private static final int DIAGONAL_POINTS = 1;
+        private static final int KNIGHT_POINTS = 3;
+        private static final int OVERLAP_POINTS = 2;
+        private static final int FILL_IN_PENALTY = 2;
+
+        private static final int CELLS = 9;
+        // the directions of the moves on the grid, by angle
+        private static final int DIRECTIONS = 16;
+
+        private static final byte[] sMoveScore = new byte[CELLS * CELLS];
+        private static final byte[] sDirection = new byte[CELLS * CELLS];
+        private static final byte[] sTurnScore = new byte[DIRECTIONS * DIRECTIONS];
+
+        static {
+            for (int from = 0; from < CELLS; from++) {
+                for (int to = 0; to < CELLS; to++) {
+                    if (from == to) {
+                        continue;
+                    }
+                    final int dx = to % 3 - from % 3;
+                    final int dy = to / 3 - from / 3;
+                    final int lengthSquared = dx * dx + dy * dy;
+                    int score = CELL_POINTS;
+                    if (lengthSquared == 5) {
+                        score += KNIGHT_POINTS;
+                    } else if (dx != 0 && dy != 0) {
+                        score += DIAGONAL_POINTS;
+                    }
+                    // after the fill in, a move with a cell between crosses a visited one
+                    if (PatternRules.GRID_3.between(from, to) != PatternRules.NONE) {
+                        score += OVERLAP_POINTS;
+                    }
+                    sMoveScore[from * CELLS + to] = (byte) score;
+                    final double angle = Math.atan2(dy, dx);
+                    sDirection[from * CELLS + to] = (byte) (Math.round(
+                            (angle + Math.PI) / (2 * Math.PI) * DIRECTIONS) % DIRECTIONS);
+                }
+            }
+            for (int previous = 0; previous < DIRECTIONS; previous++) {
+                for (int next = 0; next < DIRECTIONS; next++) {
+                    final int steps = Math.abs(previous - next);
+                    final int turn = Math.min(steps, DIRECTIONS - steps);
+                    // going straight on scores nothing, sharp turns the most
+                    final int score;
+                    if (turn == 0) {
+                        score = 0;
+                    } else if (turn <= DIRECTIONS / 4) {
+                        score = 1;
+                    } else if (turn < DIRECTIONS / 2) {
+                        score = 2;
+                    } else {
+                        // back along the same line
+                        score = 1;
+                    }
+                    sTurnScore[previous * DIRECTIONS + next] = (byte) score;
+                }
+            }
+        }
+
+        private int mSize;
+        private int mLast = -1;
+        private int mBeforeLast = -1;
+        private int mDirection = -1;
+        private int mScore;
+
+        /**
+         * Forget the cells added.
+         */
+        public void reset() {
+            mSize = 0;
+            mLast = -1;
+            mBeforeLast = -1;
+            mDirection = -1;
+            mScore = 0;
+        }
+
+        /**
+         * Add the next cell of the pattern.
+         * @param cell The value of the cell, see {@link LockPatternView.Cell#getValue()}.
+         */
+        public void addCell(int cell) {
+            if (mLast >= 0) {
+                final int move = mLast * CELLS + cell;
+                mScore += sMoveScore[move];
+                final int direction = sDirection[move];
+                if (mDirection >= 0) {
+                    mScore += sTurnScore[mDirection * DIRECTIONS + direction];
+                }
+                if (mBeforeLast >= 0 && PatternRules.GRID_3.between(mBeforeLast, cell) == mLast) {
+                    // the last cell was filled in on the way to this one
+                    mScore -= FILL_IN_PENALTY;
+                }
+                mDirection = direction;
+            } else {
+                mScore += CELL_POINTS;
+            }
+            mBeforeLast = mLast;
+            mLast = cell;
+            mSize++;
+        }
+
+        /**
+         * @return The number of cells added.
+         */
+        public int size() {
+            return mSize;
+        }
+
+        /**
+         * @return The score of the cells added, higher is stronger.
+         */
+        public int getScore() {
+            return mScore;
+        }
+
+        /**
+         * @return {@link #STRENGTH_WEAK}, {@link #STRENGTH_MEDIUM} or
+         * {@link #STRENGTH_STRONG}. Patterns shorter than
+         * {@link #MIN_LOCK_PATTERN_SIZE} are always weak.
+         */
+        public int getStrength() {
+            if (mSize < MIN_LOCK_PATTERN_SIZE || mScore < MEDIUM_SCORE) {
+                return STRENGTH_WEAK;
+            }
+            return mScore < STRONG_SCORE ? STRENGTH_MEDIUM : STRENGTH_STRONG;
+        }
+    }
+
+    private static int completionIndex(int visited, int last) {
+        return visited * PatternState.MAX_SIZE + last;
+    }
+
+    /**
+     * The counts the ranks are computed from, built on first use.
+     */
+    private static final class RankTables {
+        /**
+         * The number of valid patterns starting with any pattern of the given
+         * cells ending with the given cell, that pattern included, indexed by
+         * {@link #completionIndex}.
+         */
+        static final int[] sCompletions = new int[completionIndex(1 << PatternState.MAX_SIZE, 0)];
+        static final int sPatternCount;
+
+        static {
+            final int cells = PatternState.MAX_SIZE;
+            // extensions have more cells, so a higher mask
+            for (int visited = (1 << cells) - 1; visited > 0; visited--) {
+                final int self = Integer.bitCount(visited) >= MIN_LOCK_PATTERN_SIZE ? 1 : 0;
+                for (int last = 0; last < cells; last++) {
+                    if ((visited & (1 << last)) == 0) {
+                        continue;
+                    }
+                    int count = self;
+                    for (int next = 0; next < cells; next++) {
+                        if ((visited & (1 << next)) == 0
+                                && PatternRules.GRID_3.isDirect(last, next, visited)) {
+                            count += sCompletions[completionIndex(visited | (1 << next), next)];
+                        }
+                    }
+                    sCompletions[completionIndex(visited, last)] = count;
+                }
+            }
+            int total = 0;
+            for (int first = 0; first < cells; first++) {
+                total += sCompletions[completionIndex(1 << first, first)];
+            }
+            sPatternCount = total;
+        }
+    }
 }
@@ -18,15 +18,15 @@ package com.android.internal.widget.custom;
 
 import android.animation.Animator;
 import android.animation.AnimatorListenerAdapter;
-import android.animation.ValueAnimator;
 import android.content.Context;
+import android.content.res.Configuration;
 import android.content.res.Resources;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.graphics.Canvas;
 import android.graphics.Color;
 import android.graphics.DashPathEffect;
 import android.graphics.LinearGradient;
+import android.graphics.Matrix;
 import android.graphics.Paint;
 import android.graphics.Path;
 import android.graphics.RadialGradient;
@@ -37,10 +37,10 @@ import android.os.Bundle;
 import android.os.Debug;
 import android.os.Parcel;
 import android.os.Parcelable;
-import android.os.SystemClock;
 import android.util.AttributeSet;
 import android.util.IntArray;
 import android.util.Log;
+import android.util.SparseArray;
 import android.view.HapticFeedbackConstants;
 import android.view.MotionEvent;
 import android.view.View;
@@ -48,10 +48,12 @@ import android.view.accessibility.AccessibilityEvent;
 import android.view.accessibility.AccessibilityManager;
 import android.view.accessibility.AccessibilityNodeInfo;
 import android.view.accessibility.AccessibilityNodeInfo.AccessibilityAction;
+import android.view.animation.AccelerateDecelerateInterpolator;
 import android.view.animation.AnimationUtils;
 import android.view.animation.Interpolator;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 
@@ -59,7 +61,8 @@ import com.example.locknumber.R;
 
 /**
  * Displays and detects the user's unlock attempt, which is a drag of a finger
- * across 9 regions of the screen.
+ * across the cells of a square grid, 3 X 3 unless set otherwise with
+ * {@link #setGridSize(int)}.
  *
  * Is also capable of displaying a static pattern in "in progress", "wrong" or
  * "correct" states.
@@ -73,7 +76,13 @@ public class LockPatternView extends View {
     private static final int ASPECT_LOCK_HEIGHT = 2; // Fixed height; width will be minimum of (w,h)
 
     private static final boolean PROFILE_DRAWING = false;
-    private final CellState[][] mCellStates;
+
+    /** The grid size up to which all the segment gradients are created up front */
+    private static final int EAGER_SHADER_GRID_SIZE = 3;
+
+    private int mGridSize = 3;
+    private PatternRules mRules = PatternRules.GRID_3;
+    private CellState[][] mCellStates;
 
     private final int mDotSize;
     private final int mDotSizeActivated;
@@ -104,12 +113,18 @@ public class LockPatternView extends View {
     private final ArrayList<Cell> mPattern = new ArrayList<Cell>(9);
 
     /**
-     * Lookup table for the circles of the pattern we are currently drawing.
-     * This will be the cells of the complete pattern unless we are animating,
-     * in which case we use this to hold the cells we are drawing for the in
-     * progress animation.
+     * The cells of {@link #mPattern} as a bitmask and a packed sequence, used
+     * for all membership tests.
+     */
+    private final PatternState mPatternState = new PatternState();
+
+    /**
+     * Bitmask of the circles of the pattern we are currently drawing, indexed
+     * by cell value. This will be the cells of the complete pattern unless we
+     * are animating, in which case we use this to hold the cells we are drawing
+     * for the in progress animation.
      */
-    private final boolean[][] mPatternDrawLookup = new boolean[3][3];
+    private long mPatternDrawMask;
 
     /**
      * the in progress point:
@@ -119,20 +134,91 @@ public class LockPatternView extends View {
     private float mInProgressX = -1;
     private float mInProgressY = -1;
 
+    /**
+     * Start of the animation in the {@link System#nanoTime()} time base, and
+     * the number of cells of the pattern drawn in the current frame.
+     */
     private long mAnimatingPeriodStart;
+    private int mAnimatingCells;
+    private final Rect mAnimatingInvalidate = new Rect();
+
+    /**
+     * The software cell animations, advanced on the same frames as the
+     * {@link DisplayMode#Animate} animation.
+     */
+    private final CellAnimationTable mCellAnimations = new CellAnimationTable(
+            new CellAnimationTable.Target() {
+                @Override
+                public void setCellProperty(int cell, int property, float value, Rect dirty) {
+                    setAnimatedCellProperty(cell, property, value, dirty);
+                }
+            });
+    private final Rect mFrameInvalidate = new Rect();
+
+    private final FrameScheduler mFrameScheduler = new FrameScheduler(
+            new FrameScheduler.Callback() {
+                @Override
+                public boolean onFrame(long frameTimeNanos) {
+                    return onAnimationFrame(frameTimeNanos);
+                }
+            });
 
     private DisplayMode mPatternDisplayMode = DisplayMode.Correct;
     private boolean mInputEnabled = true;
+    private AsyncCredentialVerifier mVerifier;
+    private CredentialPipeline mPipeline;
+    // restored once the pending verification completes or is cancelled
+    private boolean mInputEnabledBeforeVerify = true;
     private boolean mInStealthMode = false;
     private boolean mEnableHapticFeedback = true;
     private boolean mPatternInProgress = false;
+    private boolean mRenderThreadAnimations = true;
 
     private float mHitFactor = 0.6f;
+    private final CellHitIndex mHitIndex = new CellHitIndex();
+    private final int[] mCrossedCells = new int[PatternState.MAX_CELLS];
 
     private float mSquareWidth;
     private float mSquareHeight;
 
     private final Path mCurrentPath = new Path();
+
+    private static final int SEGMENT_LINE = 0;
+    private static final int SEGMENT_ARC = 1;
+    /**
+     * Per segment: for lines the cell centers it joins followed by the
+     * endpoints actually drawn, for arcs their geometry as in
+     * {@link #mBitmapSegmentArcs}.
+     */
+    private static final int SEGMENT_STRIDE = 8;
+
+    /**
+     * Cached geometry of the committed segments of the pattern. Segments are
+     * appended in {@link #addCellToPattern} and cleared in {@link #resetPattern},
+     * so onDraw only has to compute the in progress section.
+     */
+    private final Path mPatternPath = new Path();
+    private final Path mPatternDotPath = new Path();
+    private int mSegmentCount;
+    private int[] mSegmentType = new int[16];
+    private int[] mSegmentCell = new int[16];
+    private float[] mSegmentCoords = new float[16 * SEGMENT_STRIDE];
+    private Shader[] mSegmentShaders = new Shader[16];
+    private float mSegmentInset;
+
+    /** Color the pattern fades to when drawn with {@link #mRegularColor} */
+    private static final int GRADIENT_END_COLOR = 0xff845f46;
+
+    /**
+     * Gradients of the pattern, created when the layout is computed so that
+     * no shader is allocated while the user is drawing. Ring gradients are
+     * keyed by their rounded radius, segment gradients by
+     * {@link #segmentShaderKey}.
+     */
+    private final SparseArray<Shader> mRingShaders = new SparseArray<Shader>();
+    private Shader[] mSegmentShaderCache = new Shader[0];
+    private Shader mProgressShader;
+    private final Matrix mProgressShaderMatrix = new Matrix();
     private final Rect mInvalidate = new Rect();
     private final Rect mTmpInvalidateRect = new Rect();
 
@@ -143,6 +229,8 @@ public class LockPatternView extends View {
 
     private final Interpolator mFastOutSlowInInterpolator;
     private final Interpolator mLinearOutSlowInInterpolator;
+    // the bitmap pulse eases in and out like a default ValueAnimator
+    private final Interpolator mPulseInterpolator = new AccelerateDecelerateInterpolator();
     private PatternExploreByTouchHelper mExploreByTouchHelper;
     private Context mContext;
     private int mPaddingLeft;
@@ -152,20 +240,25 @@ public class LockPatternView extends View {
     private AccessibilityManager mAccessibilityManager;
 
     /**
-     * Represents a cell in the 3 X 3 matrix of the unlock pattern view.
+     * Represents a cell in the N X N matrix of the unlock pattern view.
      */
     public static final class Cell {
         final int row;
         final int column;
+        final int gridSize;
 
-        // keep # objects limited to 9
+        // keep # objects limited to one per cell of each grid size, indexed by value
         private static final Cell[][] sCells = createCells();
 
         private static Cell[][] createCells() {
-            Cell[][] res = new Cell[3][3];
-            for (int i = 0; i < 3; i++) {
-                for (int j = 0; j < 3; j++) {
-                    res[i][j] = new Cell(i, j);
+            Cell[][] res = new Cell[PatternRules.MAX_GRID_SIZE + 1][];
+            for (int size = PatternRules.MIN_GRID_SIZE; size <= PatternRules.MAX_GRID_SIZE;
+                    size++) {
+                res[size] = new Cell[size * size];
+                for (int i = 0; i < size; i++) {
+                    for (int j = 0; j < size; j++) {
+                        res[size][i * size + j] = new Cell(i, j, size);
+                    }
                 }
             }
             return res;
@@ -174,11 +267,13 @@ public class LockPatternView extends View {
         /**
          * @param row The row of the cell.
          * @param column The column of the cell.
+         * @param gridSize The number of rows and columns of the grid.
          */
-        private Cell(int row, int column) {
-            checkRange(row, column);
+        private Cell(int row, int column, int gridSize) {
+            checkRange(row, column, gridSize);
             this.row = row;
             this.column = column;
+            this.gridSize = gridSize;
         }
 
         public int getRow() {
@@ -189,21 +284,46 @@ public class LockPatternView extends View {
             return column;
         }
 
+        public int getGridSize() {
+            return gridSize;
+        }
+
         public int getValue() {
-            return row*3+column;
+            return row*gridSize+column;
         }
 
+        /**
+         * @return The cell of the 3 X 3 grid.
+         */
         public static Cell of(int row, int column) {
-            checkRange(row, column);
-            return sCells[row][column];
+            return of(row, column, 3);
+        }
+
+        /**
+         * @return The cell of the grid of the given size.
+         */
+        public static Cell of(int row, int column, int gridSize) {
+            checkRange(row, column, gridSize);
+            return sCells[gridSize][row * gridSize + column];
         }
 
-        private static void checkRange(int row, int column) {
-            if (row < 0 || row > 2) {
-                throw new IllegalArgumentException("row must be in range 0-2");
+        /**
+         * @return The cell of the grid of the given size with the given value.
+         */
+        static Cell ofValue(int value, int gridSize) {
+            return of(value / gridSize, value % gridSize, gridSize);
+        }
+
+        private static void checkRange(int row, int column, int gridSize) {
+            if (gridSize < PatternRules.MIN_GRID_SIZE || gridSize > PatternRules.MAX_GRID_SIZE) {
+                throw new IllegalArgumentException("grid size must be in range "
+                        + PatternRules.MIN_GRID_SIZE + "-" + PatternRules.MAX_GRID_SIZE);
+            }
+            if (row < 0 || row >= gridSize) {
+                throw new IllegalArgumentException("row must be in range 0-" + (gridSize - 1));
             }
-            if (column < 0 || column > 2) {
-                throw new IllegalArgumentException("column must be in range 0-2");
+            if (column < 0 || column >= gridSize) {
+                throw new IllegalArgumentException("column must be in range 0-" + (gridSize - 1));
             }
         }
 
@@ -226,10 +346,17 @@ public class LockPatternView extends View {
         int row;
         int col;
         boolean hwAnimating;
+        // CanvasProperty<Float> and CanvasProperty<Paint>, see RenderThreadAnimator
+        Object hwRadius;
+        Object hwCenterX;
+        Object hwCenterY;
+        Object hwPaint;
+        // the ring color hwPaint was made with, and the animations running
+        int hwColor;
+        final ArrayList<Animator> hwAnimators = new ArrayList<Animator>();
         float radius;
         float translationY;
         float alpha = 1f;
-        public ValueAnimator lineAnimator;
      }
 
     /**
@@ -295,14 +422,13 @@ public class LockPatternView extends View {
         mPathPaint.setAntiAlias(true);
         mPathPaint.setDither(true);
 
-        mRegularColor = getResources().getColor(R.color.lock_pattern_view_regular_color);
-        mErrorColor = getResources().getColor(R.color.lock_pattern_view_error_color);
-        mSuccessColor = getResources().getColor(R.color.lock_pattern_view_success_color);
+        loadColors();
 
         mPathWidth = getResources().getDimensionPixelSize(R.dimen.lock_pattern_dot_line_width);
         mDotSize = getResources().getDimensionPixelSize(R.dimen.lock_pattern_dot_size);
         mDotSizeActivated = getResources().getDimensionPixelSize(
                 R.dimen.lock_pattern_dot_size_activated);
+        mSegmentInset = mDotSize/2 + POINT_RADIUS;
 
         mPathPaint.setColor(mRegularColor);
 
@@ -316,15 +442,7 @@ public class LockPatternView extends View {
         mPaint.setAntiAlias(true);
         mPaint.setDither(true);
 
-        mCellStates = new CellState[3][3];
-        for (int i = 0; i < 3; i++) {
-            for (int j = 0; j < 3; j++) {
-                mCellStates[i][j] = new CellState();
-                mCellStates[i][j].radius = mDotSize/2;
-                mCellStates[i][j].row = i;
-                mCellStates[i][j].col = j;
-            }
-        }
+        mCellStates = createCellStates(mGridSize);
 
         mFastOutSlowInInterpolator =
                 AnimationUtils.loadInterpolator(context, android.R.interpolator.fast_out_slow_in);
@@ -335,12 +453,60 @@ public class LockPatternView extends View {
         setAccessibilityDelegate(mExploreByTouchHelper);
 
         mAccessibilityManager = (AccessibilityManager) context.getSystemService(Context.ACCESSIBILITY_SERVICE);
+
+        rebuildShaderCache();
+    }
+
+    private CellState[][] createCellStates(int gridSize) {
+        final CellState[][] cellStates = new CellState[gridSize][gridSize];
+        for (int i = 0; i < gridSize; i++) {
+            for (int j = 0; j < gridSize; j++) {
+                cellStates[i][j] = new CellState();
+                cellStates[i][j].radius = mDotSize/2;
+                cellStates[i][j].row = i;
+                cellStates[i][j].col = j;
+            }
+        }
+        return cellStates;
     }
 
     public CellState[][] getCellStates() {
         return mCellStates;
     }
 
+    /**
+     * Set the number of rows and columns of the grid, which clears the
+     * pattern. The bitmap lock is always 3 X 3.
+     * @param gridSize The size, from 3 to 8.
+     */
+    public void setGridSize(int gridSize) {
+        if (gridSize < PatternRules.MIN_GRID_SIZE || gridSize > PatternRules.MAX_GRID_SIZE) {
+            throw new IllegalArgumentException("grid size must be in range "
+                    + PatternRules.MIN_GRID_SIZE + "-" + PatternRules.MAX_GRID_SIZE);
+        }
+        if (BITMAP_LOCK && gridSize != 3) {
+            throw new IllegalStateException("the bitmap lock is 3 X 3");
+        }
+        if (gridSize == mGridSize) {
+            return;
+        }
+        cancelVerification();
+        mCellAnimations.end(mFrameInvalidate);
+        resetPattern();
+        mGridSize = gridSize;
+        mRules = PatternRules.forGridSize(gridSize);
+        mCellStates = createCellStates(gridSize);
+        updateSquareSize(getWidth(), getHeight());
+        invalidate();
+    }
+
+    /**
+     * @return The number of rows and columns of the grid.
+     */
+    public int getGridSize() {
+        return mGridSize;
+    }
+
     /**
      * @return Whether the view is in stealth mode.
      */
@@ -355,6 +521,135 @@ public class LockPatternView extends View {
         return mEnableHapticFeedback;
     }
 
+    /**
+     * Check the current pattern against a hashed credential off the UI
+     * thread, see {@link AsyncCredentialVerifier}. Input is disabled until
+     * the listener is called. The check is cancelled, and the listener not
+     * called, when a new pattern is started or the view is detached.
+     *
+     * @return false if the check couldn't be queued, the listener won't be called.
+     * Only patterns of the 3 X 3 grid can be checked.
+     */
+    public boolean verifyPatternAsync(CredentialHasher.Record record,
+            final AsyncCredentialVerifier.OnVerifiedListener listener) {
+        if (mGridSize != 3) {
+            return false;
+        }
+        prepareVerification();
+        final AsyncCredentialVerifier.OnVerifiedListener wrapper =
+                new AsyncCredentialVerifier.OnVerifiedListener() {
+                    @Override
+                    public void onVerified(boolean matched) {
+                        mInputEnabled = mInputEnabledBeforeVerify;
+                        listener.onVerified(matched);
+                    }
+                };
+        final long packed = getPackedPattern();
+        if (mPipeline != null && mPipeline.isVerifying(record)
+                && mPipeline.finishVerify(packed, wrapper)) {
+            return onVerificationQueued(true);
+        }
+        return onVerificationQueued(mVerifier.verifyPattern(record, packed, wrapper));
+    }
+
+    /**
+     * Hash the current pattern off the UI thread, with a work factor
+     * calibrated for the target latency, see {@link CredentialHasher#calibrated(long)}.
+     * Input is disabled, and the request cancelled, as for {@link #verifyPatternAsync}.
+     *
+     * @return false if the request couldn't be queued, the listener won't be called.
+     * Only patterns of the 3 X 3 grid can be hashed.
+     */
+    public boolean hashPatternAsync(long targetMillis,
+            final AsyncCredentialVerifier.OnHashedListener listener) {
+        if (mGridSize != 3) {
+            return false;
+        }
+        prepareVerification();
+        final AsyncCredentialVerifier.OnHashedListener wrapper =
+                new AsyncCredentialVerifier.OnHashedListener() {
+                    @Override
+                    public void onHashed(CredentialHasher.Record record) {
+                        mInputEnabled = mInputEnabledBeforeVerify;
+                        listener.onHashed(record);
+                    }
+                };
+        final long packed = getPackedPattern();
+        if (mPipeline != null && mPipeline.finishHash(packed, wrapper)) {
+            return onVerificationQueued(true);
+        }
+        return onVerificationQueued(mVerifier.hashPattern(targetMillis, packed, wrapper));
+    }
+
+    /**
+     * Set the pipeline hashing the pattern while it is drawn, see
+     * {@link CredentialPipeline}. {@link #verifyPatternAsync} and
+     * {@link #hashPatternAsync} then only wait for its final stage when it
+     * applies, and fall back to hashing the whole pattern otherwise.
+     * @param pipeline The pipeline, or null to hash the whole pattern.
+     */
+    public void setCredentialPipeline(CredentialPipeline pipeline) {
+        if (mPipeline != null) {
+            cancelVerification();
+            mPipeline.reset();
+        }
+        mPipeline = pipeline;
+        if (mPipeline != null && mGridSize == 3) {
+            for (int i = 0; i < mPattern.size(); i++) {
+                mPipeline.onCellAdded(mPattern.get(i).getValue());
+            }
+        }
+    }
+
+    /**
+     * Cancel the pending verification or hashing, if any, without calling its listener.
+     */
+    public void cancelVerification() {
+        if (isVerificationPending()) {
+            if (mVerifier != null) {
+                mVerifier.cancel();
+            }
+            if (mPipeline != null && mPipeline.isFinishing()) {
+                mPipeline.reset();
+            }
+            mInputEnabled = mInputEnabledBeforeVerify;
+        }
+    }
+
+    private boolean isVerificationPending() {
+        return (mVerifier != null && mVerifier.isPending())
+                || (mPipeline != null && mPipeline.isFinishing());
+    }
+
+    private void prepareVerification() {
+        // a request being replaced already disabled input
+        if (!isVerificationPending()) {
+            mInputEnabledBeforeVerify = mInputEnabled;
+        }
+        if (mVerifier == null) {
+            mVerifier = new AsyncCredentialVerifier();
+        } else {
+            mVerifier.cancel();
+        }
+    }
+
+    private boolean onVerificationQueued(boolean queued) {
+        mInputEnabled = queued ? false : mInputEnabledBeforeVerify;
+        return queued;
+    }
+
+    /**
+     * @return The current pattern packed into a long, see {@link PatternState#toPacked()},
+     * or {@link LockPatternUtils#INVALID_PATTERN} if the grid isn't 3 X 3.
+     */
+    public long getPackedPattern() {
+        if (mGridSize != 3) {
+            // cells below 9 of a larger grid would pack as a different 3 X 3 pattern
+            return LockPatternUtils.INVALID_PATTERN;
+        }
+        return mPatternState.toPacked();
+    }
+
     /**
      * Set whether the view is in stealth mode.  If true, there will be no
      * visible feedback as the user enters the pattern.
@@ -391,11 +686,23 @@ public class LockPatternView extends View {
      * @param pattern The pattern.
      */
     public void setPattern(DisplayMode displayMode, List<Cell> pattern) {
+        for (Cell cell : pattern) {
+            if (cell.getGridSize() != mGridSize) {
+                throw new IllegalArgumentException("cell " + cell + " is not of the "
+                        + mGridSize + " X " + mGridSize + " grid");
+            }
+        }
         mPattern.clear();
         mPattern.addAll(pattern);
-        clearPatternDrawLookup();
+        mPatternState.clear();
         for (Cell cell : pattern) {
-            mPatternDrawLookup[cell.getRow()][cell.getColumn()] = true;
+            mPatternState.add(cell.getValue());
+        }
+        mPatternDrawMask = mPatternState.getVisited();
+        rebuildPatternSegments();
+        if (mPipeline != null) {
+            // a pattern set for display is hashed as a whole if ever
+            mPipeline.reset();
         }
 
         setDisplayMode(displayMode);
@@ -414,57 +721,429 @@ public class LockPatternView extends View {
                 throw new IllegalStateException("you must have a pattern to "
                         + "animate if you want to set the display mode to animate");
             }
-            mAnimatingPeriodStart = SystemClock.elapsedRealtime();
-            final Cell first = mPattern.get(0);
-            mInProgressX = getCenterXForColumn(first.getColumn());
-            mInProgressY = getCenterYForRow(first.getRow());
-            clearPatternDrawLookup();
-        }
+            mAnimatingPeriodStart = System.nanoTime();
+            final int first = mPatternState.get(0);
+            mInProgressX = getCellCenterX(first);
+            mInProgressY = getCellCenterY(first);
+            mPatternDrawMask = 0;
+            mAnimatingCells = 0;
+            mAnimatingInvalidate.setEmpty();
+        }
+        cancelStaleCellStatesHw();
+        updateFrameScheduler();
         invalidate();
     }
 
+    /**
+     * Set the maximum frame rate of the {@link DisplayMode#Animate} animation.
+     * @param framesPerSecond The frame rate, or 0 to animate on every frame.
+     */
+    public void setAnimationFrameRateCap(int framesPerSecond) {
+        mFrameScheduler.setMaxFrameRate(framesPerSecond);
+    }
+
+    /**
+     * Only tick the animations while there are some, and the Animate
+     * animation only while it can be seen.
+     */
+    private void updateFrameScheduler() {
+        if (isAttachedToWindow() && (isPatternAnimationVisible() || mCellAnimations.isRunning())) {
+            mFrameScheduler.start();
+        } else {
+            mFrameScheduler.stop();
+        }
+    }
+
+    private boolean isPatternAnimationVisible() {
+        return mPatternDisplayMode == DisplayMode.Animate
+                && getWindowVisibility() == VISIBLE && isShown();
+    }
+
+    /**
+     * Advance all the animations of the view to the given frame, and redraw
+     * what they changed at once.
+     * @return Whether any animation is still running.
+     */
+    private boolean onAnimationFrame(long frameTimeNanos) {
+        final Rect dirty = mFrameInvalidate;
+        dirty.setEmpty();
+        boolean running = isPatternAnimationVisible()
+                && updateAnimatingPattern(frameTimeNanos, dirty);
+        running |= mCellAnimations.tick(frameTimeNanos, dirty);
+        if (!dirty.isEmpty()) {
+            invalidate(dirty);
+        }
+        return running;
+    }
+
+    @Override
+    protected void onAttachedToWindow() {
+        super.onAttachedToWindow();
+        updateFrameScheduler();
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        super.onDetachedFromWindow();
+        // no more frames, land the cell animations on their end values
+        mCellAnimations.end(mFrameInvalidate);
+        cancelVerification();
+        updateFrameScheduler();
+    }
+
+    @Override
+    protected void onVisibilityChanged(View changedView, int visibility) {
+        super.onVisibilityChanged(changedView, visibility);
+        updateFrameScheduler();
+    }
+
+    @Override
+    protected void onWindowVisibilityChanged(int visibility) {
+        super.onWindowVisibilityChanged(visibility);
+        updateFrameScheduler();
+    }
+
+    /**
+     * Advance the {@link DisplayMode#Animate} animation to the given frame.
+     * @param dirty Rectangle the area the ghosting line moved over is added to.
+     * @return Whether the animation is still running.
+     */
+    private boolean updateAnimatingPattern(long frameTimeNanos, Rect dirty) {
+        final int count = mPatternState.size();
+        if (mPatternDisplayMode != DisplayMode.Animate || count == 0) {
+            return false;
+        }
+
+        // figure out which circles to draw
+
+        // + 1 so we pause on complete pattern
+        final int oneCycle = (count + 1) * MILLIS_PER_CIRCLE_ANIMATING;
+        final long elapsed = Math.max(0, (frameTimeNanos - mAnimatingPeriodStart) / 1000000);
+        final int spotInCycle = (int) (elapsed % oneCycle);
+        final int numCircles = Math.min(spotInCycle / MILLIS_PER_CIRCLE_ANIMATING, count);
+
+        dirty.union(mAnimatingInvalidate);
+        mAnimatingInvalidate.setEmpty();
+        if (numCircles != mAnimatingCells) {
+            if (numCircles < mAnimatingCells) {
+                // started over
+                dirty.set(0, 0, getWidth(), getHeight());
+            }
+            long drawMask = 0;
+            for (int i = 0; i < numCircles; i++) {
+                final int cell = mPatternState.get(i);
+                drawMask |= 1L << cell;
+                if (i >= mAnimatingCells) {
+                    unionCellBounds(dirty, cell);
+                    unionSegmentBounds(dirty, i);
+                }
+            }
+            mPatternDrawMask = drawMask;
+            mAnimatingCells = numCircles;
+        }
+
+        // figure out in progress portion of ghosting line
+
+        final boolean needToUpdateInProgressPoint = numCircles > 0
+                && numCircles < count;
+
+        if (needToUpdateInProgressPoint) {
+            final float percentageOfNextCircle =
+                    ((float) (spotInCycle % MILLIS_PER_CIRCLE_ANIMATING)) /
+                            MILLIS_PER_CIRCLE_ANIMATING;
+
+            final int currentCell = mPatternState.get(numCircles - 1);
+            final float centerX = getCellCenterX(currentCell);
+            final float centerY = getCellCenterY(currentCell);
+
+            final int nextCell = mPatternState.get(numCircles);
+            final float dx = percentageOfNextCircle *
+                    (getCellCenterX(nextCell) - centerX);
+            final float dy = percentageOfNextCircle *
+                    (getCellCenterY(nextCell) - centerY);
+            mInProgressX = centerX + dx;
+            mInProgressY = centerY + dy;
+
+            final float radius = mPathWidth;
+            mAnimatingInvalidate.set(
+                    (int) Math.floor(Math.min(centerX, mInProgressX) - radius),
+                    (int) Math.floor(Math.min(centerY, mInProgressY) - radius),
+                    (int) Math.ceil(Math.max(centerX, mInProgressX) + radius),
+                    (int) Math.ceil(Math.max(centerY, mInProgressY) + radius));
+            dirty.union(mAnimatingInvalidate);
+        }
+        return true;
+    }
+
+    /**
+     * @return The horizontal center of a cell in view coordinates, for the current layout.
+     */
+    private float getCellCenterX(int cell) {
+        if (BITMAP_LOCK && mPoints != null) {
+            return center + mPoints[cell].x;
+        }
+        return getCenterXForColumn(cell % mGridSize);
+    }
+
+    /**
+     * @return The vertical center of a cell in view coordinates, for the current layout.
+     */
+    private float getCellCenterY(int cell) {
+        if (BITMAP_LOCK && mPoints != null) {
+            return center + mPoints[cell].y;
+        }
+        return getCenterYForRow(cell / mGridSize);
+    }
+
+    /**
+     * Add the area drawn for a cell (its ring, dot or bitmap at its current
+     * scale) to a rectangle.
+     */
+    private void unionCellBounds(Rect rect, int cell) {
+        unionCellBounds(rect, cell, 0f);
+    }
+
+    private void unionCellBounds(Rect rect, int cell, float translationY) {
+        final float centerX = getCellCenterX(cell);
+        final float centerY = getCellCenterY(cell) + translationY;
+        final float halfWidth;
+        final float halfHeight;
+        if (BITMAP_LOCK) {
+            final float scale = cellOf(cell).getScale();
+            // + 1 for the antialiased edge
+            halfWidth = halfHeight = Math.max(Math.round(center/3*scale) / 2f,
+                    BITMAP_POINT_RADIUS) + 1;
+        } else {
+            halfWidth = mSquareWidth / 2f;
+            halfHeight = mSquareHeight / 2f;
+        }
+        rect.union((int) Math.floor(centerX - halfWidth), (int) Math.floor(centerY - halfHeight),
+                (int) Math.ceil(centerX + halfWidth), (int) Math.ceil(centerY + halfHeight));
+    }
+
+    /**
+     * Add the area drawn for the segments leading to a cell of the pattern,
+     * lines or arcs, to a rectangle.
+     * @param patternIndex The position of the cell in the pattern.
+     */
+    private void unionSegmentBounds(Rect rect, int patternIndex) {
+        // the bitmap lock segments are relative to the center of the view
+        final float offset = BITMAP_LOCK ? center : 0;
+        final float[] coords = mSegmentCoords;
+        for (int i = 0; i < mSegmentCount; i++) {
+            if (mSegmentCell[i] != patternIndex) {
+                continue;
+            }
+            final int o = i * SEGMENT_STRIDE;
+            if (mSegmentType[i] == SEGMENT_ARC) {
+                // an arc of up to half a circle doesn't stray further from its
+                // chord than its sagitta
+                unionLineBounds(rect, offset + coords[o + 2], offset + coords[o + 3],
+                        offset + coords[o + 4], offset + coords[o + 5],
+                        coords[o + 6] + mPathWidth);
+            } else {
+                unionLineBounds(rect, offset + coords[o + 4], offset + coords[o + 5],
+                        offset + coords[o + 6], offset + coords[o + 7], mPathWidth);
+            }
+        }
+    }
+
+    /**
+     * Add the bounds of a line, grown by the given amount on every side, to a rectangle.
+     */
+    private static void unionLineBounds(Rect rect, float fromX, float fromY,
+            float toX, float toY, float outset) {
+        rect.union((int) Math.floor(Math.min(fromX, toX) - outset),
+                (int) Math.floor(Math.min(fromY, toY) - outset),
+                (int) Math.ceil(Math.max(fromX, toX) + outset),
+                (int) Math.ceil(Math.max(fromY, toY) + outset));
+    }
+
+    /**
+     * Set whether the cell animations run on the RenderThread when the view
+     * is hardware accelerated, so they stay smooth while the UI thread is
+     * busy. They run on the UI thread otherwise, or if the platform doesn't
+     * support it.
+     *
+     * @param enabled Whether to use RenderThread animations, the default.
+     */
+    public void setRenderThreadAnimationsEnabled(boolean enabled) {
+        mRenderThreadAnimations = enabled;
+    }
+
+    private boolean useRenderThreadAnimations() {
+        return mRenderThreadAnimations && !BITMAP_LOCK && isHardwareAccelerated()
+                && RenderThreadAnimator.isSupported();
+    }
+
     public void startCellStateAnimation(CellState cellState, float startAlpha, float endAlpha,
             float startTranslationY, float endTranslationY, float startScale, float endScale,
             long delay, long duration,
             Interpolator interpolator, Runnable finishRunnable) {
-        startCellStateAnimationSw(cellState, startAlpha, endAlpha, startTranslationY,
-                endTranslationY, startScale, endScale, delay, duration, interpolator,
-                finishRunnable);
+        if (useRenderThreadAnimations()) {
+            startCellStateAnimationHw(cellState, startAlpha, endAlpha, startTranslationY,
+                    endTranslationY, startScale, endScale, delay, duration, interpolator,
+                    finishRunnable);
+        } else {
+            startCellStateAnimationSw(cellState, startAlpha, endAlpha, startTranslationY,
+                    endTranslationY, startScale, endScale, delay, duration, interpolator,
+                    finishRunnable);
+        }
     }
 
-    private void startCellStateAnimationSw(final CellState cellState,
-            final float startAlpha, final float endAlpha,
-            final float startTranslationY, final float endTranslationY,
-            final float startScale, final float endScale,
+    private void startCellStateAnimationHw(final CellState cellState,
+            float startAlpha, float endAlpha,
+            float startTranslationY, float endTranslationY,
+            float startScale, float endScale,
             long delay, long duration, Interpolator interpolator, final Runnable finishRunnable) {
-        cellState.alpha = startAlpha;
-        cellState.translationY = startTranslationY;
-        cellState.radius = mDotSize/2 * startScale;
-        ValueAnimator animator = ValueAnimator.ofFloat(0f, 1f);
-        animator.setDuration(duration);
-        animator.setStartDelay(delay);
-        animator.setInterpolator(interpolator);
-        animator.addUpdateListener(new ValueAnimator.AnimatorUpdateListener() {
-            @Override
-            public void onAnimationUpdate(ValueAnimator animation) {
-                float t = (float) animation.getAnimatedValue();
-                cellState.alpha = (1 - t) * startAlpha + t * endAlpha;
-                cellState.translationY = (1 - t) * startTranslationY + t * endTranslationY;
-                cellState.radius = mDotSize/2 * ((1 - t) * startScale + t * endScale);
-                invalidate();
-            }
-        });
-        animator.addListener(new AnimatorListenerAdapter() {
+        // the values the software path draws once the animation is over
+        cellState.alpha = endAlpha;
+        cellState.translationY = endTranslationY;
+        cellState.radius = mDotSize/2 * endScale;
+        final float centerY = getCenterYForRow(cellState.row);
+        prepareCellStateHw(cellState, startAlpha, startTranslationY, mDotSize/2 * startScale);
+
+        startHw(cellState, RenderThreadAnimator.animateFloat(cellState.hwCenterY,
+                centerY + endTranslationY, this, delay, duration, interpolator));
+        startHw(cellState, RenderThreadAnimator.animateFloat(cellState.hwRadius,
+                mDotSize/2 * endScale + POINT_RADIUS, this, delay, duration, interpolator));
+        final Animator alpha = RenderThreadAnimator.animatePaintAlpha(cellState.hwPaint,
+                endAlpha * 255f, this, delay, duration, interpolator);
+        alpha.addListener(new AnimatorListenerAdapter() {
             @Override
             public void onAnimationEnd(Animator animation) {
+                finishCellStateHw(cellState);
                 if (finishRunnable != null) {
                     finishRunnable.run();
                 }
             }
         });
+        startHw(cellState, alpha);
+        invalidate();
+    }
+
+    private static void startHw(CellState cellState, Animator animator) {
+        cellState.hwAnimators.add(animator);
         animator.start();
     }
 
+    /**
+     * Create the canvas properties a cell is drawn with while it animates on
+     * the RenderThread, see {@link #drawCellState}.
+     */
+    private void prepareCellStateHw(CellState cellState, float alpha, float translationY,
+            float radius) {
+        final int cell = cellState.row * mGridSize + cellState.col;
+        cellState.hwCenterX = RenderThreadAnimator.createFloat(
+                (int) getCenterXForColumn(cellState.col));
+        cellState.hwCenterY = RenderThreadAnimator.createFloat(
+                (int) getCenterYForRow(cellState.row) + translationY);
+        cellState.hwRadius = RenderThreadAnimator.createFloat(radius + POINT_RADIUS);
+        cellState.hwColor = getCurrentColor(cell, (mPatternDrawMask & (1L << cell)) != 0);
+        configureRingPaint(cellState.hwColor, mDotSize/2 + POINT_RADIUS);
+        mPaint.setAlpha((int) (alpha * 255));
+        cellState.hwPaint = RenderThreadAnimator.createPaint(mPaint);
+        mPaint.setShader(null);
+        mPaint.setAlpha(255);
+        cellState.hwAnimating = true;
+    }
+
+    /**
+     * Cancel the RenderThread animations of the cells whose ring color
+     * changed since they started, their paint can't follow it. The software
+     * path then draws them in the current color, from their end values.
+     */
+    private void cancelStaleCellStatesHw() {
+        final long drawMask = mPatternDrawMask;
+        for (int i = 0; i < mGridSize; i++) {
+            for (int j = 0; j < mGridSize; j++) {
+                final CellState cellState = mCellStates[i][j];
+                final int cell = i * mGridSize + j;
+                if (cellState.hwAnimating && cellState.hwColor
+                        != getCurrentColor(cell, (drawMask & (1L << cell)) != 0)) {
+                    cancelCellStateHw(cellState);
+                }
+            }
+        }
+    }
+
+    private void cancelCellStateHw(CellState cellState) {
+        // cancelled animations end, their listeners may finish the cell meanwhile
+        final Animator[] animators = cellState.hwAnimators.toArray(
+                new Animator[cellState.hwAnimators.size()]);
+        for (Animator animator : animators) {
+            animator.cancel();
+        }
+        if (cellState.hwAnimating) {
+            finishCellStateHw(cellState);
+        }
+    }
+
+    private void finishCellStateHw(CellState cellState) {
+        cellState.hwAnimating = false;
+        cellState.hwAnimators.clear();
+        cellState.hwCenterX = null;
+        cellState.hwCenterY = null;
+        cellState.hwRadius = null;
+        cellState.hwPaint = null;
+        invalidate();
+    }
+
+    private void startCellStateAnimationSw(CellState cellState,
+            float startAlpha, float endAlpha,
+            float startTranslationY, float endTranslationY,
+            float startScale, float endScale,
+            long delay, long duration, Interpolator interpolator, Runnable finishRunnable) {
+        final int cell = cellState.row * mGridSize + cellState.col;
+        final Rect dirty = mFrameInvalidate;
+        mCellAnimations.start(cell, CellAnimationTable.PROPERTY_ALPHA, startAlpha, endAlpha,
+                delay, duration, interpolator, null, dirty);
+        mCellAnimations.start(cell, CellAnimationTable.PROPERTY_TRANSLATION_Y,
+                startTranslationY, endTranslationY, delay, duration, interpolator, null, dirty);
+        mCellAnimations.start(cell, CellAnimationTable.PROPERTY_RADIUS,
+                mDotSize/2 * startScale, mDotSize/2 * endScale, delay, duration, interpolator,
+                finishRunnable, dirty);
+        onCellAnimationsStarted();
+    }
+
+    /**
+     * Redraw the start values of the cell animations just started, and make
+     * sure they get frames.
+     */
+    private void onCellAnimationsStarted() {
+        if (!mFrameInvalidate.isEmpty()) {
+            invalidate(mFrameInvalidate);
+            mFrameInvalidate.setEmpty();
+        }
+        updateFrameScheduler();
+    }
+
+    /**
+     * Apply a value of the cell animations, see {@link CellAnimationTable}.
+     */
+    private void setAnimatedCellProperty(int cell, int property, float value, Rect dirty) {
+        final CellState cellState = mCellStates[cell / mGridSize][cell % mGridSize];
+        switch (property) {
+            case CellAnimationTable.PROPERTY_RADIUS:
+                cellState.radius = value;
+                break;
+            case CellAnimationTable.PROPERTY_ALPHA:
+                cellState.alpha = value;
+                break;
+            case CellAnimationTable.PROPERTY_TRANSLATION_Y:
+                // the cell moves away from where it was drawn
+                unionCellBounds(dirty, cell, cellState.translationY);
+                cellState.translationY = value;
+                break;
+            case CellAnimationTable.PROPERTY_SCALE_PULSE:
+                // the bitmap may shrink within where it was drawn
+                unionCellBounds(dirty, cell);
+                cellOf(cell).setScale(value);
+                break;
+        }
+        unionCellBounds(dirty, cell, cellState.translationY);
+    }
+
     private void notifyCellAdded() {
         // sendAccessEvent(R.string.lockscreen_access_pattern_cell_added);
         if (mOnPatternListener != null) {
@@ -476,6 +1155,8 @@ public class LockPatternView extends View {
     }
 
     private void notifyPatternStarted() {
+        // the pattern the pending verification was about is gone
+        cancelVerification();
         sendAccessEvent(R.string.lockscreen_access_pattern_start);
         if (mOnPatternListener != null) {
             mOnPatternListener.onPatternStart();
@@ -517,22 +1198,16 @@ public class LockPatternView extends View {
      */
     private void resetPattern() {
         mPattern.clear();
-        clearPatternDrawLookup();
+        mPatternState.clear();
+        mPatternDrawMask = 0;
+        clearPatternSegments();
+        if (mPipeline != null) {
+            mPipeline.reset();
+        }
         mPatternDisplayMode = DisplayMode.Correct;
         invalidate();
     }
 
-    /**
-     * Clear the pattern lookup table.
-     */
-    private void clearPatternDrawLookup() {
-        for (int i = 0; i < 3; i++) {
-            for (int j = 0; j < 3; j++) {
-                mPatternDrawLookup[i][j] = false;
-            }
-        }
-    }
-
     /**
      * Disable input (for instance when displaying a message that will
      * timeout so user doesn't get view into messy state).
@@ -550,13 +1225,36 @@ public class LockPatternView extends View {
 
     @Override
     protected void onSizeChanged(int w, int h, int oldw, int oldh) {
-        final int width = w - mPaddingLeft - mPaddingRight;
-        mSquareWidth = width / 3.0f;
-
         if (DEBUG_A11Y) Log.v(TAG, "onSizeChanged(" + w + "," + h + ")");
+        computeBitmapLockGeometry(w);
+        updateSquareSize(w, h);
+    }
+
+    /**
+     * Compute the size of the cells of the grid, and what depends on it.
+     */
+    private void updateSquareSize(int w, int h) {
+        final int width = w - mPaddingLeft - mPaddingRight;
+        mSquareWidth = width / (float) mGridSize;
         final int height = h - mPaddingTop - mPaddingBottom;
-        mSquareHeight = height / 3.0f;
-        mExploreByTouchHelper.invalidateRoot();
+        mSquareHeight = height / (float) mGridSize;
+        rebuildHitIndex();
+        rebuildShaderCache();
+    }
+
+    @Override
+    protected void onConfigurationChanged(Configuration newConfig) {
+        super.onConfigurationChanged(newConfig);
+        // theme or density may have changed, redraw the background on the next frame
+        mBackgroundLayerDirty = true;
+        loadColors();
+        rebuildShaderCache();
+    }
+
+    private void loadColors() {
+        mRegularColor = getResources().getColor(R.color.lock_pattern_view_regular_color);
+        mErrorColor = getResources().getColor(R.color.lock_pattern_view_error_color);
+        mSuccessColor = getResources().getColor(R.color.lock_pattern_view_success_color);
     }
 
     private int resolveMeasured(int measureSpec, int desired)
@@ -609,56 +1307,60 @@ public class LockPatternView extends View {
     private Cell detectAndAddHit(float x, float y) {
         final Cell cell = checkForNewHit(x, y);
         if (cell != null) {
+            addHitCell(cell);
+        }
+        return cell;
+    }
 
-            // check for gaps in existing pattern
-            Cell fillInGapCell = null;
-            final ArrayList<Cell> pattern = mPattern;
-            if (!pattern.isEmpty()) {
-                final Cell lastCell = pattern.get(pattern.size() - 1);
-                int dRow = cell.row - lastCell.row;
-                int dColumn = cell.column - lastCell.column;
-
-                int fillInRow = lastCell.row;
-                int fillInColumn = lastCell.column;
-
-                if(Math.abs(dRow) == 1 && Math.abs(dColumn) == 1 && cell.getValue() != 4
-                        && lastCell.getValue() != 4){
-                    if(cell.row == 0 || cell.row == 2){
-                        fillInRow = cell.row;
-                        fillInColumn = lastCell.column;
-                    }else if(lastCell.row == 0 || lastCell.row == 2){
-                        fillInRow = lastCell.row;
-                        fillInColumn = cell.column;
-                    }
-                }else{
-                    if (Math.abs(dRow) == 2 && Math.abs(dColumn) != 1) {
-                        fillInRow = lastCell.row + ((dRow > 0) ? 1 : -1);
-                    }
-                    if (Math.abs(dColumn) == 2 && Math.abs(dRow) != 1) {
-                        fillInColumn = lastCell.column + ((dColumn > 0) ? 1 : -1);
-                    }
-                }
-
-                fillInGapCell = Cell.of(fillInRow, fillInColumn);
-            }
-            if (fillInGapCell != null &&
-                    !mPatternDrawLookup[fillInGapCell.row][fillInGapCell.column]) {
-                addCellToPattern(fillInGapCell);
+    /**
+     * Add the cells the move from one touch sample to the next went
+     * through, in order, see {@link CellHitIndex#getCellsCrossed}.
+     * @return Whether a cell was added.
+     */
+    private boolean detectAndAddSweptHits(float fromX, float fromY, float toX, float toY) {
+        final int count = mHitIndex.getCellsCrossed(fromX, fromY, toX, toY, mCrossedCells);
+        boolean added = false;
+        for (int i = 0; i < count; i++) {
+            final int cell = mCrossedCells[i];
+            // may have been filled in as the gap of a previous one
+            if (!mPatternState.isVisited(cell)) {
+                addHitCell(cellOf(cell));
+                added = true;
             }
-            addCellToPattern(cell);
-            if (mEnableHapticFeedback) {
-                performHapticFeedback(HapticFeedbackConstants.VIRTUAL_KEY,
-                        HapticFeedbackConstants.FLAG_IGNORE_VIEW_SETTING
-                        | HapticFeedbackConstants.FLAG_IGNORE_GLOBAL_SETTING);
+        }
+        return added;
+    }
+
+    private void addHitCell(Cell cell) {
+        // check for gaps in existing pattern
+        int from = mPatternState.last();
+        if (from >= 0) {
+            // on larger grids a move may jump over several cells, nearest first
+            int fillIn;
+            while ((fillIn = mRules.between(from, cell.getValue())) != PatternRules.NONE) {
+                if (!mPatternState.isVisited(fillIn)) {
+                    addCellToPattern(cellOf(fillIn));
+                }
+                from = fillIn;
             }
-            return cell;
         }
-        return null;
+        addCellToPattern(cell);
+        if (mEnableHapticFeedback) {
+            performHapticFeedback(HapticFeedbackConstants.VIRTUAL_KEY,
+                    HapticFeedbackConstants.FLAG_IGNORE_VIEW_SETTING
+                    | HapticFeedbackConstants.FLAG_IGNORE_GLOBAL_SETTING);
+        }
     }
 
     private void addCellToPattern(Cell newCell) {
-        mPatternDrawLookup[newCell.getRow()][newCell.getColumn()] = true;
+        mPatternState.add(newCell.getValue());
+        mPatternDrawMask = mPatternState.getVisited();
         mPattern.add(newCell);
+        appendPatternSegments(mPattern.size() - 1);
+        if (mPipeline != null && mGridSize == 3) {
+            // start deriving the key while the rest is drawn
+            mPipeline.onCellAdded(newCell.getValue());
+        }
         if (!mInStealthMode) {
             if(BITMAP_LOCK){
                 startCellBitmapAnimation(newCell);
@@ -669,162 +1371,85 @@ public class LockPatternView extends View {
         notifyCellAdded();
     }
 
-    private void startCellBitmapAnimation(final Cell cell){
-        ValueAnimator valueAnimator = ValueAnimator.ofFloat(1.0f, 1.2f, 1.0f);
-        valueAnimator.addUpdateListener(new ValueAnimator.AnimatorUpdateListener() {
-            @Override
-            public void onAnimationUpdate(ValueAnimator animation) {
-                float scale = (float) animation.getAnimatedValue();
-                cell.setScale(scale);
-                invalidate();
-            }
-        });
-        valueAnimator.setDuration(192);
-        valueAnimator.start();
+    private void startCellBitmapAnimation(Cell cell) {
+        mCellAnimations.start(cell.getValue(), CellAnimationTable.PROPERTY_SCALE_PULSE,
+                DotBitmapCache.MIN_SCALE, DotBitmapCache.MAX_SCALE, 0, 192, mPulseInterpolator,
+                null, mFrameInvalidate);
+        onCellAnimationsStarted();
     }
 
     private void startCellActivatedAnimation(Cell cell) {
         final CellState cellState = mCellStates[cell.row][cell.column];
-        startRadiusAnimation(mDotSize/2, mDotSizeActivated/2, 96, mLinearOutSlowInInterpolator,
-                cellState, new Runnable() {
-                    @Override
-                    public void run() {
-                        startRadiusAnimation(mDotSizeActivated/2, mDotSize/2, 192,
-                                mFastOutSlowInInterpolator,
-                                cellState, null);
-                    }
-                });
-        startLineEndAnimation(cellState, mInProgressX, mInProgressY,
-                getCenterXForColumn(cell.column), getCenterYForRow(cell.row));
+        if (useRenderThreadAnimations()) {
+            startCellActivatedAnimationHw(cellState);
+            return;
+        }
+        final int grow = mCellAnimations.start(cell.getValue(),
+                CellAnimationTable.PROPERTY_RADIUS, mDotSize/2, mDotSizeActivated/2, 0, 96,
+                mLinearOutSlowInInterpolator, null, mFrameInvalidate);
+        mCellAnimations.chain(grow, mDotSizeActivated/2, mDotSize/2, 192,
+                mFastOutSlowInInterpolator, null);
+        onCellAnimationsStarted();
     }
 
-    private void startLineEndAnimation(final CellState state,
-            final float startX, final float startY, final float targetX, final float targetY) {
-        ValueAnimator valueAnimator = ValueAnimator.ofFloat(0, 1);
-        valueAnimator.addUpdateListener(new ValueAnimator.AnimatorUpdateListener() {
-            @Override
-            public void onAnimationUpdate(ValueAnimator animation) {
-                float t = (float) animation.getAnimatedValue();
-                invalidate();
-            }
-        });
-        valueAnimator.addListener(new AnimatorListenerAdapter() {
+    /**
+     * Pulse the radius of an activated cell on the RenderThread. Both halves of
+     * the pulse are scheduled at once, so the shrinking half doesn't wait for
+     * the UI thread either.
+     */
+    private void startCellActivatedAnimationHw(final CellState cellState) {
+        if (cellState.hwAnimating) {
+            return;
+        }
+        cellState.radius = mDotSize/2;
+        prepareCellStateHw(cellState, cellState.alpha, cellState.translationY, mDotSize/2);
+        startHw(cellState, RenderThreadAnimator.animateFloat(cellState.hwRadius,
+                mDotSizeActivated/2 + POINT_RADIUS, this, 0, 96, mLinearOutSlowInInterpolator));
+        final Animator shrink = RenderThreadAnimator.animateFloat(cellState.hwRadius,
+                mDotSize/2 + POINT_RADIUS, this, 96, 192, mFastOutSlowInInterpolator);
+        shrink.addListener(new AnimatorListenerAdapter() {
             @Override
             public void onAnimationEnd(Animator animation) {
-                state.lineAnimator = null;
-            }
-        });
-        valueAnimator.setInterpolator(mFastOutSlowInInterpolator);
-        valueAnimator.setDuration(100);
-        valueAnimator.start();
-        state.lineAnimator = valueAnimator;
-    }
-
-    private void startRadiusAnimation(float start, float end, long duration,
-            Interpolator interpolator, final CellState state, final Runnable endRunnable) {
-        ValueAnimator valueAnimator = ValueAnimator.ofFloat(start, end);
-        valueAnimator.addUpdateListener(new ValueAnimator.AnimatorUpdateListener() {
-            @Override
-            public void onAnimationUpdate(ValueAnimator animation) {
-                state.radius = (float) animation.getAnimatedValue();
-                invalidate();
+                finishCellStateHw(cellState);
             }
         });
-        if (endRunnable != null) {
-            valueAnimator.addListener(new AnimatorListenerAdapter() {
-                @Override
-                public void onAnimationEnd(Animator animation) {
-                    endRunnable.run();
-                }
-            });
-        }
-        valueAnimator.setInterpolator(interpolator);
-        valueAnimator.setDuration(duration);
-        valueAnimator.start();
+        startHw(cellState, shrink);
+        invalidate();
     }
 
     // helper method to find which cell a point maps to
     private Cell checkForNewHit(float x, float y) {
-        int rowHit,columnHit;
-        if(BITMAP_LOCK){
-            final int[] cellHit = getCellHit(x, y);
-            if(cellHit == null){
-                return null;
-            }
-            rowHit = cellHit[0];
-            columnHit = cellHit[1];
-
-        }else{
-            rowHit = getRowHit(y);
-            if (rowHit < 0) {
-                return null;
-            }
-            columnHit = getColumnHit(x);
-            if (columnHit < 0) {
-                return null;
-            }
-        }
-        if (mPatternDrawLookup[rowHit][columnHit]) {
+        final int cell = mHitIndex.getCellAt(x, y);
+        if (cell < 0 || mPatternState.isVisited(cell)) {
             return null;
         }
-        return Cell.of(rowHit, columnHit);
-    }
-
-    private int[] getCellHit(float x, float y) {
-        if(mPoints == null) return null;
-        x -= center;
-        y -= center;
-        for(int i=0; i<mPoints.length; i++){
-            Point point = mPoints[i];
-            if(point != null){
-                if(Math.abs(point.x - x) <= 50 && Math.abs(point.y - y) <= 50){
-                    int[] row_col = {point.row,point.col};
-                    return row_col;
-                }
-            }
-        }
-        return null;
+        return cellOf(cell);
     }
 
-
     /**
-     * Helper method to find the row that y falls into.
-     * @param y The y coordinate
-     * @return The row that y falls in, or -1 if it falls in no row.
+     * @return The cell of the current grid with the given value.
      */
-    private int getRowHit(float y) {
-        final float squareHeight = mSquareHeight;
-        float hitSize = squareHeight * mHitFactor;
-
-        float offset = mPaddingTop + (squareHeight - hitSize) / 2f;
-        for (int i = 0; i < 3; i++) {
-
-            final float hitTop = offset + squareHeight * i;
-            if (y >= hitTop && y <= hitTop + hitSize) {
-                return i;
-            }
-        }
-        return -1;
+    private Cell cellOf(int value) {
+        return Cell.ofValue(value, mGridSize);
     }
 
     /**
-     * Helper method to find the column x fallis into.
-     * @param x The x coordinate.
-     * @return The column that x falls in, or -1 if it falls in no column.
+     * Index the hit boxes of the cells for the current layout, see {@link CellHitIndex}.
      */
-    private int getColumnHit(float x) {
-        final float squareWidth = mSquareWidth;
-        float hitSize = squareWidth * mHitFactor;
-
-        float offset = mPaddingLeft + (squareWidth - hitSize) / 2f;
-        for (int i = 0; i < 3; i++) {
-
-            final float hitLeft = offset + squareWidth * i;
-            if (x >= hitLeft && x <= hitLeft + hitSize) {
-                return i;
+    private void rebuildHitIndex() {
+        if (BITMAP_LOCK && mPoints != null) {
+            final float[] centerX = new float[9];
+            final float[] centerY = new float[9];
+            for (int i = 0; i < 9; i++) {
+                centerX[i] = getCellCenterX(i);
+                centerY[i] = getCellCenterY(i);
             }
+            mHitIndex.setPoints(centerX, centerY, CellHitIndex.BITMAP_HIT_HALF_SIZE);
+        } else {
+            mHitIndex.setGrid(mGridSize, mPaddingLeft, mPaddingTop, mSquareWidth, mSquareHeight,
+                    mHitFactor);
         }
-        return -1;
+        mExploreByTouchHelper.invalidateRoot();
     }
 
     @Override
@@ -889,16 +1514,26 @@ public class LockPatternView extends View {
     private void handleActionMove(MotionEvent event) {
         // Handle all recent motion events so we don't skip any cells even when the device
         // is busy...
-        final float radius = mPathWidth;
         final int historySize = event.getHistorySize();
-        mTmpInvalidateRect.setEmpty();
+        final Rect dirty = mTmpInvalidateRect;
+        dirty.setEmpty();
         boolean invalidateNow = false;
+        // the previous sample, from the previous event or ACTION_DOWN
+        float previousX = mInProgressX;
+        float previousY = mInProgressY;
         for (int i = 0; i < historySize + 1; i++) {
             final float x = i < historySize ? event.getHistoricalX(i) : event.getX();
             final float y = i < historySize ? event.getHistoricalY(i) : event.getY();
-            Cell hitCell = detectAndAddHit(x, y);
+            final int previousSize = mPattern.size();
+            // test the whole move since the previous sample, not only where it
+            // ended, so a fast swipe can't jump over a cell
+            final boolean hit = previousX != -1 && previousY != -1
+                    ? detectAndAddSweptHits(previousX, previousY, x, y)
+                    : detectAndAddHit(x, y) != null;
+            previousX = x;
+            previousY = y;
             final int patternSize = mPattern.size();
-            if (hitCell != null && patternSize == 1) {
+            if (hit && previousSize == 0) {
                 setPatternInProgress(true);
                 notifyPatternStarted();
             }
@@ -910,33 +1545,18 @@ public class LockPatternView extends View {
             }
 
             if (mPatternInProgress && patternSize > 0) {
-                final ArrayList<Cell> pattern = mPattern;
-                final Cell lastCell = pattern.get(patternSize - 1);
-                float lastCellCenterX = getCenterXForColumn(lastCell.column);
-                float lastCellCenterY = getCenterYForRow(lastCell.row);
-
-                // Adjust for drawn segment from last cell to (x,y). Radius accounts for line width.
-                float left = Math.min(lastCellCenterX, x) - radius;
-                float right = Math.max(lastCellCenterX, x) + radius;
-                float top = Math.min(lastCellCenterY, y) - radius;
-                float bottom = Math.max(lastCellCenterY, y) + radius;
-
-                // Invalidate between the pattern's new cell and the pattern's previous cell
-                if (hitCell != null) {
-                    final float width = mSquareWidth * 0.5f;
-                    final float height = mSquareHeight * 0.5f;
-                    final float hitCellCenterX = getCenterXForColumn(hitCell.column);
-                    final float hitCellCenterY = getCenterYForRow(hitCell.row);
-
-                    left = Math.min(hitCellCenterX - width, left);
-                    right = Math.max(hitCellCenterX + width, right);
-                    top = Math.min(hitCellCenterY - height, top);
-                    bottom = Math.max(hitCellCenterY + height, bottom);
+                // the cells this sample added, gap cells included, and the
+                // segments leading to them
+                for (int j = previousSize; j < patternSize; j++) {
+                    unionCellBounds(dirty, mPatternState.get(j));
+                    unionSegmentBounds(dirty, j);
                 }
 
-                // Invalidate between the pattern's last cell and the previous location
-                mTmpInvalidateRect.union(Math.round(left), Math.round(top),
-                        Math.round(right), Math.round(bottom));
+                // the rubber band from the last cell to the sample, the one to
+                // the previous location is part of the previous rectangle
+                final int lastCell = mPatternState.last();
+                unionLineBounds(dirty, getCellCenterX(lastCell), getCellCenterY(lastCell),
+                        x, y, mPathWidth);
             }
         }
         mInProgressX = event.getX();
@@ -947,6 +1567,9 @@ public class LockPatternView extends View {
             mInvalidate.union(mTmpInvalidateRect);
             invalidate(mInvalidate);
             mInvalidate.set(mTmpInvalidateRect);
+        } else {
+            // keep the damage of the skipped update for the next one
+            mInvalidate.union(mTmpInvalidateRect);
         }
     }
 
@@ -958,7 +1581,6 @@ public class LockPatternView extends View {
         // report pattern detected
         if (!mPattern.isEmpty()) {
             setPatternInProgress(false);
-            cancelLineAnimations();
             notifyPatternDetected();
             invalidate();
         }
@@ -970,16 +1592,6 @@ public class LockPatternView extends View {
         }
     }
 
-    private void cancelLineAnimations() {
-        for (int i = 0; i < 3; i++) {
-            for (int j = 0; j < 3; j++) {
-                CellState state = mCellStates[i][j];
-                if (state.lineAnimator != null) {
-                    state.lineAnimator.cancel();
-                }
-            }
-        }
-    }
     private void handleActionDown(MotionEvent event) {
         resetPattern();
         final float x = event.getX();
@@ -993,16 +1605,7 @@ public class LockPatternView extends View {
             setPatternInProgress(false);
             notifyPatternCleared();
         }
-        if (hitCell != null) {
-            final float startX = getCenterXForColumn(hitCell.column);
-            final float startY = getCenterYForRow(hitCell.row);
-
-            final float widthOffset = mSquareWidth / 2f;
-            final float heightOffset = mSquareHeight / 2f;
-
-            invalidate((int) (startX - widthOffset), (int) (startY - heightOffset),
-                    (int) (startX + widthOffset), (int) (startY + heightOffset));
-        }
+        // resetPattern() already invalidated the whole view, the old pattern included
         mInProgressX = x;
         mInProgressY = y;
         if (PROFILE_DRAWING) {
@@ -1024,252 +1627,87 @@ public class LockPatternView extends View {
     @Override
     protected void onDraw(Canvas canvas) {
 
-        int width = this.getWidth();
         if(BITMAP_LOCK){
-            center = width/2;
-            // move origin to the center of the canvas
-            canvas.translate(center, center);
-
-            POINT_RADIUS = 20.0f;
-            RADIUS = center - RD;
-
-            float radius = RADIUS-SPACING;
-            mOval = new RectF( -radius, -radius, radius, radius);
-
-            float cx = (float)(RADIUS*Math.cos(45 * Math.PI / 180));
-            float cy = (float)(RADIUS*Math.sin(45 * Math.PI / 180));
-
-            /*
-            * 4 is center of the canvas (0, 0)
-            *
-            *             1
-
-            *       0           2
-
-            *  3          4          5
-
-            *       6           8
-
-            *             7
-            */
-            Point[] points = {new Point(-cx, -cy)/* 0 */,new Point(0, -RADIUS)/* 1 */,new Point(cx, -cy)/* 2 */,
-                    new Point(-RADIUS, 0)/* 3 */,new Point(0, 0)/* 4 */,new Point(RADIUS, 0)/* 5 */,
-                    new Point(-cx, cy)/* 6 */,new Point(0, RADIUS)/* 7 */,new Point(cx, cy)/* 8 */};
-            for (int i = 0; i < 3; i++) {
-                for (int j = 0; j < 3; j++) {
-                    int index = i*3 + j;
-                    points[index].row = i;
-                    points[index].col = j;
-                }
+            if (mBackgroundLayerDirty || mBackgroundLayer == null) {
+                buildBackgroundLayer();
             }
-            mPoints = points;
-
-            // dotted line
-            mPaint.setPathEffect (new DashPathEffect (new float[]{15, 18}, 0)) ;
-            // hollow
-            mPaint.setStyle(Paint.Style.STROKE);
-            mPaint.setColor(Color.parseColor("#444444"));
-            // dotted line Circle
-            canvas.drawCircle(0, 0, RADIUS+SPACING, mPaint);
-
-            // 0 -> 5 -> 6 -> 1 -> 8 -> 3 -> 2 -> 7 -> 0 -> 8
-            int[] p1 = {5,6,1,8,3,2,7,0,8};
-            Path path = new Path();
-            path.moveTo(mPoints[0].x, mPoints[0].y);
-            for(int i=0; i<p1.length; i++){
-                int pos = p1[i];
-                path.lineTo(mPoints[pos].x, mPoints[pos].y);
+            if (mBackgroundLayer != null) {
+                canvas.drawBitmap(mBackgroundLayer, 0, 0, null);
             }
-            canvas.drawPath(path, mPaint);
-
-            // 1 -> 7
-            path.reset();
-            path.moveTo(mPoints[1].x, mPoints[1].y);
-            path.lineTo(mPoints[7].x, mPoints[7].y);
-            canvas.drawPath(path, mPaint);
-
-            // 2 -> 6
-            path.reset();
-            path.moveTo(mPoints[2].x, mPoints[2].y);
-            path.lineTo(mPoints[6].x, mPoints[6].y);
-            canvas.drawPath(path, mPaint);
-
-            // 3 -> 5
-            path.reset();
-            path.moveTo(mPoints[3].x, mPoints[3].y);
-            path.lineTo(mPoints[5].x, mPoints[5].y);
-            canvas.drawPath(path, mPaint);
-
-
-            // full line
-            mPaint.setPathEffect(null) ;
-            // full line Circle
-            canvas.drawCircle(0, 0, radius, mPaint);
-        }else{
-            POINT_RADIUS = RD;
+            // move origin to the center of the canvas
+            canvas.translate(center, center);
         }
 
         final ArrayList<Cell> pattern = mPattern;
         final int count = pattern.size();
-        final boolean[][] drawLookup = mPatternDrawLookup;
+        // only draw the part of the pattern stored in the lookup table
+        // (this is only different in the case of animation).
+        int drawnCells = count;
 
         if (mPatternDisplayMode == DisplayMode.Animate) {
-
-            // figure out which circles to draw
-
-            // + 1 so we pause on complete pattern
-            final int oneCycle = (count + 1) * MILLIS_PER_CIRCLE_ANIMATING;
-            final int spotInCycle = (int) (SystemClock.elapsedRealtime() -
-                    mAnimatingPeriodStart) % oneCycle;
-            final int numCircles = spotInCycle / MILLIS_PER_CIRCLE_ANIMATING;
-
-            clearPatternDrawLookup();
-            for (int i = 0; i < numCircles; i++) {
-                final Cell cell = pattern.get(i);
-                drawLookup[cell.getRow()][cell.getColumn()] = true;
-            }
-
-            // figure out in progress portion of ghosting line
-
-            final boolean needToUpdateInProgressPoint = numCircles > 0
-                    && numCircles < count;
-
-            if (needToUpdateInProgressPoint) {
-                final float percentageOfNextCircle =
-                        ((float) (spotInCycle % MILLIS_PER_CIRCLE_ANIMATING)) /
-                                MILLIS_PER_CIRCLE_ANIMATING;
-
-                final Cell currentCell = pattern.get(numCircles - 1);
-                final float centerX = getCenterXForColumn(currentCell.column);
-                final float centerY = getCenterYForRow(currentCell.row);
-
-                final Cell nextCell = pattern.get(numCircles);
-                final float dx = percentageOfNextCircle *
-                        (getCenterXForColumn(nextCell.column) - centerX);
-                final float dy = percentageOfNextCircle *
-                        (getCenterYForRow(nextCell.row) - centerY);
-                mInProgressX = centerX + dx;
-                mInProgressY = centerY + dy;
-            }
-            // TODO: Infinite loop here...
-            invalidate();
+            // advanced by the frame scheduler, see updateAnimatingPattern
+            drawnCells = mAnimatingCells;
         }
 
         final Path currentPath = mCurrentPath;
         currentPath.rewind();
-        float radius = 0;
 
         // draw the circle-rings
-        for (int i = 0; i < 3; i++) {
-            mCurrentRingRow = i;
-            float centerY = getCenterYForRow(i);
-            for (int j = 0; j < 3; j++) {
-                mCurrentRingColumn = j;
-                CellState cellState = mCellStates[i][j];
-                radius = cellState.radius + POINT_RADIUS;
-                float centerX = getCenterXForColumn(j);
-                float translationY = cellState.translationY;
-
-                int index = i*3+j;
-                if(BITMAP_LOCK){
-                    Point point = mPoints[index];
-                    centerX = point.x;
-                    centerY = point.y;
-                }
-
-                if(BITMAP_LOCK){
-                    drawCircle(canvas,centerX,centerY);
-                    //drawCircleText(canvas, index+"", point.x, point.y);
-                }else{
+        if (!BITMAP_LOCK) {
+            // in bitmap lock mode the points are part of the background layer
+            final long drawMask = mPatternDrawMask;
+            for (int i = 0; i < mGridSize; i++) {
+                float centerY = getCenterYForRow(i);
+                for (int j = 0; j < mGridSize; j++) {
+                    CellState cellState = mCellStates[i][j];
+                    float radius = cellState.radius + POINT_RADIUS;
+                    float centerX = getCenterXForColumn(j);
+                    float translationY = cellState.translationY;
+                    if (cellState.hwAnimating && RenderThreadAnimator.drawCircle(canvas,
+                            cellState.hwCenterX, cellState.hwCenterY, cellState.hwRadius,
+                            cellState.hwPaint)) {
+                        continue;
+                    }
+                    final int cell = i * mGridSize + j;
+                    final int color = getCurrentColor(cell, (drawMask & (1L << cell)) != 0);
                     drawCircleRing(canvas, (int) centerX, (int) centerY + translationY,
-                            radius, drawLookup[i][j], cellState.alpha);
+                            radius, color, cellState.alpha);
                 }
             }
         }
 
-        // TODO: the path should be created and cached every time we hit-detect a cell
-        // only the last segment of the path should be computed here
         // draw the path of the pattern (unless we are in stealth mode)
         final boolean drawPath = !mInStealthMode;
 
-        if (drawPath) {
-            boolean anyCircles = false;
-            float lastX = 0f;
-            float lastY = 0f;
-            int lastIndex = -1;
-            for (int i = 0; i < count; i++) {
-                Cell cell = pattern.get(i);
-                // path paint cell
-                mCurrentRingRow = cell.row;
-                mCurrentRingColumn = cell.column;
-                int color = getCurrentColor(true /* partOfPattern */);
-                mPathPaint.setColor(color);
-
-                // only draw the part of the pattern stored in
-                // the lookup table (this is only different in the case
-                // of animation).
-                if (!drawLookup[cell.row][cell.column]) {
-                    break;
-                }
-                anyCircles = true;
-
-                float centerX = getCenterXForColumn(cell.column);
-                float centerY = getCenterYForRow(cell.row);
+        if (drawPath && drawnCells > 0) {
+            // every cell of the pattern is painted with the same color
+            final int color = getPatternColor(true /* partOfPattern */);
+            mPathPaint.setColor(color);
 
-                int index = cell.getValue();;
-                if(BITMAP_LOCK){
-                    Point point = mPoints[cell.getValue()];
-                    centerX = point.x;
-                    centerY = point.y;
+            // the committed segments are cached as cells are added, only the in
+            // progress section is computed here. Segments drawn with a gradient
+            // and the partial pattern of the animation are drawn one by one.
+            if (drawnCells == count && (BITMAP_LOCK || color != mRegularColor)) {
+                canvas.drawPath(mPatternPath, mPathPaint);
+            } else {
+                for (int i = 0; i < mSegmentCount && mSegmentCell[i] < drawnCells; i++) {
+                    drawPatternSegment(canvas, i, color);
                 }
+            }
 
-                int sum = index + lastIndex;
-                if (i != 0) {
-                    if(BITMAP_LOCK){
-                        int diff = Math.abs(index - lastIndex);
-                        if(index == 4 || lastIndex == 4 || sum == 8 || sum == 5 || sum == 11 ||
-                                (sum%2 != 0 && diff != 3 && diff != 1)){
-                            //CellState state = mCellStates[cell.row][cell.column];
-                            currentPath.rewind();
-                            currentPath.moveTo(lastX, lastY);
-                            currentPath.lineTo(centerX, centerY);
-                            canvas.drawPath(currentPath, mPathPaint);
-                        }else{
-                            float startAngle = calculateAngle(lastX, lastY);
-                            float endAngle = calculateAngle(centerX, centerY);
-                            mPathPaint.setStyle(Paint.Style.STROKE);
-                            float angle = endAngle - startAngle;
-                            if(lastIndex == 2 && index == 5) angle = 45.f;
-                            if(lastIndex == 1 && index == 5) angle = 90.f;
-                            if(lastIndex == 2 && index == 8) angle = 90.f;
-                            if(lastIndex == 5 && index == 2) angle = -45.f;
-                            if(lastIndex == 5 && index == 1) angle = -90.f;
-                            if(lastIndex == 8 && index == 2) angle = -90.f;
-                            canvas.drawArc(mOval,startAngle,angle,false,mPathPaint);
-                        }
-                    }else{
-                        if ((mLastRingColumn - mCurrentRingColumn)%2 == 0 && (mLastRingRow - mCurrentRingRow)%2 == 0) {
-                            float between_x = (lastX + centerX)/2;
-                            float between_y = (lastY + centerY)/2;
-                            drawSingleLine(lastX, lastY, between_x, between_y, radius, currentPath, canvas);
-                            drawSingleLine(between_x, between_y, centerX, centerY, radius, currentPath, canvas);
-                        } else {
-                            drawSingleLine(lastX, lastY, centerX, centerY, radius, currentPath, canvas);
-                        }
-                    }
-                }
+            if (!BITMAP_LOCK) {
                 // when drawpath, draw circle point
-                if(BITMAP_LOCK){
-                    lastIndex = index;
-                }else{
-                    drawCirclePoint(canvas, centerX, centerY);
+                mPaint.setColor(color);
+                mPaint.setStyle(Paint.Style.FILL);
+                if (drawnCells == count) {
+                    canvas.drawPath(mPatternDotPath, mPaint);
+                } else {
+                    for (int i = 0; i < drawnCells; i++) {
+                        final Cell cell = pattern.get(i);
+                        drawCirclePoint(canvas, getCenterXForColumn(cell.column),
+                                getCenterYForRow(cell.row));
+                    }
                 }
-
-                lastX = centerX;
-                lastY = centerY;
-
-                mLastRingColumn = mCurrentRingColumn;
-                mLastRingRow = mCurrentRingRow;
             }
 
             // last draw the bitmap circle
@@ -1281,63 +1719,484 @@ public class LockPatternView extends View {
                 }
             }
 
-
             // draw last in progress section
-            if ((mPatternInProgress || mPatternDisplayMode == DisplayMode.Animate)
-                    && anyCircles) {
-                if(BITMAP_LOCK && mInProgressX != -1 && mInProgressY != -1){
-                    float progressX = mInProgressX - center;
-                    float progressY = mInProgressY - center;
-
-                    currentPath.rewind();
-                    currentPath.moveTo(lastX, lastY);
-
-                    currentPath.lineTo(progressX, progressY);
-                    mPathPaint.setAlpha((int) (calculateLastSegmentAlpha(
-                            progressX, progressY, lastX, lastY) * 255f));
-                    canvas.drawPath(currentPath, mPathPaint);
+            if (mPatternInProgress || mPatternDisplayMode == DisplayMode.Animate) {
+                final Cell last = pattern.get(drawnCells - 1);
+                if(BITMAP_LOCK){
+                    if (mInProgressX != -1 && mInProgressY != -1) {
+                        final Point point = mPoints[last.getValue()];
+                        float progressX = mInProgressX - center;
+                        float progressY = mInProgressY - center;
+
+                        currentPath.rewind();
+                        currentPath.moveTo(point.x, point.y);
+
+                        currentPath.lineTo(progressX, progressY);
+                        mPathPaint.setAlpha((int) (calculateLastSegmentAlpha(
+                                progressX, progressY, point.x, point.y) * 255f));
+                        canvas.drawPath(currentPath, mPathPaint);
+                    }
                 }else{
-                    drawSingleLine(lastX, lastY, mInProgressX, mInProgressY, radius, currentPath, canvas);
+                    drawSingleLine(getCenterXForColumn(last.column), getCenterYForRow(last.row),
+                            mInProgressX, mInProgressY, mSegmentInset, currentPath, canvas);
+                }
+            }
+        }
+    }
+
+    /**
+     * Draw one of the cached segments of the pattern.
+     */
+    private void drawPatternSegment(Canvas canvas, int segment, int color) {
+        final float[] coords = mSegmentCoords;
+        final int offset = segment * SEGMENT_STRIDE;
+        if (mSegmentType[segment] == SEGMENT_ARC) {
+            canvas.drawArc(mOval, coords[offset], coords[offset + 1], false, mPathPaint);
+            return;
+        }
+        if (color == mRegularColor && !BITMAP_LOCK) {
+            mPathPaint.setShader(mSegmentShaders[segment]);
+        }
+        canvas.drawLine(coords[offset + 4], coords[offset + 5],
+                coords[offset + 6], coords[offset + 7], mPathPaint);
+        // default no shader
+        mPathPaint.setShader(null);
+    }
+
+    /**
+     * Extend the cached path of the pattern with the segment leading to the
+     * cell at the given position of the pattern.
+     */
+    private void appendPatternSegments(int patternIndex) {
+        final Cell cell = mPattern.get(patternIndex);
+        if (BITMAP_LOCK) {
+            if (mPoints == null || patternIndex == 0) {
+                return;
+            }
+            final int lastIndex = mPattern.get(patternIndex - 1).getValue();
+            final int index = cell.getValue();
+            final int key = lastIndex * mPoints.length + index;
+            if (mBitmapSegmentType[key] == SEGMENT_ARC) {
+                appendArcSegment(patternIndex, key);
+            } else {
+                final Point last = mPoints[lastIndex];
+                final Point point = mPoints[index];
+                appendLineSegment(patternIndex, last.x, last.y, point.x, point.y, 0, -1);
+            }
+            return;
+        }
+
+        final float centerX = getCenterXForColumn(cell.column);
+        final float centerY = getCenterYForRow(cell.row);
+        mPatternDotPath.addCircle(centerX, centerY, mDotSize/2+5, Path.Direction.CW);
+        if (patternIndex == 0) {
+            return;
+        }
+        final Cell last = mPattern.get(patternIndex - 1);
+        final float lastX = getCenterXForColumn(last.column);
+        final float lastY = getCenterYForRow(last.row);
+        final int from = last.getValue();
+        final int to = cell.getValue();
+        if (mRules.isSplit(from, to)) {
+            float between_x = (lastX + centerX)/2;
+            float between_y = (lastY + centerY)/2;
+            appendLineSegment(patternIndex, lastX, lastY, between_x, between_y, mSegmentInset,
+                    segmentShaderKey(from, to, 1));
+            appendLineSegment(patternIndex, between_x, between_y, centerX, centerY,
+                    mSegmentInset, segmentShaderKey(from, to, 2));
+        } else {
+            appendLineSegment(patternIndex, lastX, lastY, centerX, centerY, mSegmentInset,
+                    segmentShaderKey(from, to, 0));
+        }
+    }
+
+    /**
+     * @param part 0 for a whole segment, 1 and 2 for the halves of a split one.
+     */
+    private int segmentShaderKey(int from, int to, int part) {
+        return (from * mGridSize * mGridSize + to) * 3 + part;
+    }
+
+    /**
+     * Recreate the gradients for the current layout and colors. The segment
+     * gradients of larger grids, too many to create up front, are created
+     * when first drawn, see {@link #appendLineSegment}.
+     */
+    private void rebuildShaderCache() {
+        mRingShaders.clear();
+        final int cells = mGridSize * mGridSize;
+        mSegmentShaderCache = new Shader[cells * cells * 3];
+        mProgressShader = new LinearGradient(0, 0, 1, 0,
+                new int[]{mRegularColor, GRADIENT_END_COLOR}, null, Shader.TileMode.MIRROR);
+        if (mSquareWidth > 0 && mSquareHeight > 0) {
+            // every radius a ring goes through while animating
+            final int minRadius = (int) Math.floor(mDotSize/2 + RD);
+            final int maxRadius = (int) Math.ceil(mDotSizeActivated/2 + RD);
+            for (int r = minRadius; r <= maxRadius; r++) {
+                mRingShaders.put(r, createRingShader(r));
+            }
+
+            for (int from = 0; mGridSize <= EAGER_SHADER_GRID_SIZE && from < cells; from++) {
+                final Cell a = cellOf(from);
+                final float fromX = getCenterXForColumn(a.column);
+                final float fromY = getCenterYForRow(a.row);
+                for (int to = 0; to < cells; to++) {
+                    if (to == from) {
+                        continue;
+                    }
+                    final Cell b = cellOf(to);
+                    final float toX = getCenterXForColumn(b.column);
+                    final float toY = getCenterYForRow(b.row);
+                    if (mRules.isSplit(from, to)) {
+                        final float betweenX = (fromX + toX) / 2;
+                        final float betweenY = (fromY + toY) / 2;
+                        mSegmentShaderCache[segmentShaderKey(from, to, 1)] =
+                                createLineShader(fromX, fromY, betweenX, betweenY);
+                        mSegmentShaderCache[segmentShaderKey(from, to, 2)] =
+                                createLineShader(betweenX, betweenY, toX, toY);
+                    } else {
+                        mSegmentShaderCache[segmentShaderKey(from, to, 0)] =
+                                createLineShader(fromX, fromY, toX, toY);
+                    }
                 }
             }
         }
+        // the cached segments point to the old shaders
+        rebuildPatternSegments();
+    }
+
+    private Shader createRingShader(float radius) {
+        return new RadialGradient(radius, radius, radius,
+                new int[] {mRegularColor, GRADIENT_END_COLOR}, null, Shader.TileMode.MIRROR);
+    }
+
+    private Shader createLineShader(float fromX, float fromY, float endX, float endY) {
+        return new LinearGradient(fromX, fromY, endX, endY,
+                new int[]{mRegularColor, GRADIENT_END_COLOR}, null, Shader.TileMode.MIRROR);
+    }
+
+    private int nextSegment(int type, int patternIndex) {
+        if (mSegmentCount == mSegmentType.length) {
+            final int capacity = mSegmentCount * 2;
+            mSegmentType = Arrays.copyOf(mSegmentType, capacity);
+            mSegmentCell = Arrays.copyOf(mSegmentCell, capacity);
+            mSegmentCoords = Arrays.copyOf(mSegmentCoords, capacity * SEGMENT_STRIDE);
+            mSegmentShaders = Arrays.copyOf(mSegmentShaders, capacity);
+        }
+        final int segment = mSegmentCount++;
+        mSegmentType[segment] = type;
+        mSegmentCell[segment] = patternIndex;
+        mSegmentShaders[segment] = null;
+        return segment * SEGMENT_STRIDE;
+    }
+
+    private void appendLineSegment(int patternIndex, float fromX, float fromY,
+            float endX, float endY, float inset, int shaderKey) {
+        final int offset = nextSegment(SEGMENT_LINE, patternIndex);
+        if (shaderKey >= 0 && shaderKey < mSegmentShaderCache.length) {
+            if (mSegmentShaderCache[shaderKey] == null && mSquareWidth > 0 && mSquareHeight > 0) {
+                mSegmentShaderCache[shaderKey] = createLineShader(fromX, fromY, endX, endY);
+            }
+            mSegmentShaders[mSegmentCount - 1] = mSegmentShaderCache[shaderKey];
+        }
+        final float[] coords = mSegmentCoords;
+        coords[offset] = fromX;
+        coords[offset + 1] = fromY;
+        coords[offset + 2] = endX;
+        coords[offset + 3] = endY;
+        float a = fromX-endX;
+        float b = fromY-endY;
+        float c = (float)Math.sqrt(a*a + b*b);
+        float cos_ = c == 0 ? 0 : a/c;
+        float sin_ = c == 0 ? 0 : b/c;
+        coords[offset + 4] = fromX - inset*cos_;
+        coords[offset + 5] = fromY - inset*sin_;
+        coords[offset + 6] = endX + inset*cos_;
+        coords[offset + 7] = endY + inset*sin_;
+        mPatternPath.moveTo(coords[offset + 4], coords[offset + 5]);
+        mPatternPath.lineTo(coords[offset + 6], coords[offset + 7]);
+    }
+
+    /**
+     * @param key The pair of points joined, see {@link #mBitmapSegmentType}.
+     */
+    private void appendArcSegment(int patternIndex, int key) {
+        final int offset = nextSegment(SEGMENT_ARC, patternIndex);
+        System.arraycopy(mBitmapSegmentArcs, key * ARC_STRIDE, mSegmentCoords, offset,
+                ARC_STRIDE);
+        mPatternPath.addArc(mOval, mSegmentCoords[offset], mSegmentCoords[offset + 1]);
+    }
+
+    /**
+     * Drop the cached path of the pattern.
+     */
+    private void clearPatternSegments() {
+        mPatternPath.rewind();
+        mPatternDotPath.rewind();
+        mSegmentCount = 0;
+    }
+
+    /**
+     * Rebuild the cached path of the pattern, needed when the geometry changes.
+     */
+    private void rebuildPatternSegments() {
+        clearPatternSegments();
+        for (int i = 0; i < mPattern.size(); i++) {
+            appendPatternSegments(i);
+        }
     }
 
-    private int mCurrentRingRow = -1;
-    private int mCurrentRingColumn = -1;
-    private int mLastRingRow = -1;
-    private int mLastRingColumn = -1;
 
     // standard radius
     private float RD = 60.0f;
     // graph area radius
     private float RADIUS = 0.0f;
     // draw point radius
-    private float POINT_RADIUS = 0.0f;
+    private float POINT_RADIUS = RD;
+    private static final float BITMAP_POINT_RADIUS = 20.0f;
     private final float SPACING = 4.0f;
     // distance between the center of a circle and its boundary
     private float center = 0.0f;
     private Point[] mPoints;
     private RectF mOval;
-    private int[] mPointBitmap;
-    private int[] mPointBitmapError;
+
+    /** Points of the circle at most this far apart, in degrees, are joined by an arc */
+    private static final float MAX_ARC_SWEEP = 90f;
+    private static final float ANGLE_TOLERANCE = 0.5f;
+    /** How far from the circle a point can be and still be on it, in pixels */
+    private static final float CIRCLE_TOLERANCE = 1f;
+    private static final int ARC_STRIDE = 7;
+
+    /**
+     * How the bitmap lock draws the segment between two points, indexed by
+     * from * number of points + to: {@link #SEGMENT_LINE} or {@link #SEGMENT_ARC}.
+     */
+    private byte[] mBitmapSegmentType;
+    /**
+     * Per pair of points joined by an arc: its start and sweep angles, the
+     * coordinates of its ends and its sagitta, see {@link #buildBitmapSegmentTable}.
+     */
+    private float[] mBitmapSegmentArcs;
+    private DotBitmapCache mDotBitmapCache;
+    private final RectF mBitmapDst = new RectF();
+
+    // static part of the bitmap lock pattern (dotted circle, chords and points)
+    private Bitmap mBackgroundLayer;
+    private boolean mBackgroundLayerDirty = true;
 
     // enable bitmap lock pattern
     private boolean BITMAP_LOCK = false;
     public void setBitmapLock(boolean enable){
+        if (enable) {
+            // the bitmap lock is laid out for 3 X 3 only
+            setGridSize(3);
+        }
         BITMAP_LOCK = enable;
-        if(BITMAP_LOCK && mPointBitmap == null){
+        POINT_RADIUS = BITMAP_LOCK ? BITMAP_POINT_RADIUS : RD;
+        if (BITMAP_LOCK) {
+            mBackgroundLayerDirty = true;
+        } else if (mBackgroundLayer != null) {
+            mBackgroundLayer.recycle();
+            mBackgroundLayer = null;
+        }
+        rebuildPatternSegments();
+        rebuildHitIndex();
+        invalidate();
+        if(BITMAP_LOCK && mDotBitmapCache == null){
             final int[] pointBitmap = {R.drawable.ic_unlock_dot_0,R.drawable.ic_unlock_dot_1,
                     R.drawable.ic_unlock_dot_2,R.drawable.ic_unlock_dot_3,R.drawable.ic_unlock_dot_4,
                     R.drawable.ic_unlock_dot_5,R.drawable.ic_unlock_dot_6,R.drawable.ic_unlock_dot_7,
                     R.drawable.ic_unlock_dot_8};
-            mPointBitmap = pointBitmap;
-            final int[] pointBitmapError = {R.drawable.ic_unlock_dot_e,
-                    R.drawable.ic_unlock_dot_e,R.drawable.ic_unlock_dot_e,
-                    R.drawable.ic_unlock_dot_e,R.drawable.ic_unlock_dot_e,
-                    R.drawable.ic_unlock_dot_e,R.drawable.ic_unlock_dot_e,
-                    R.drawable.ic_unlock_dot_e,R.drawable.ic_unlock_dot_e};
-            mPointBitmapError = pointBitmapError;
+            mDotBitmapCache = new DotBitmapCache(pointBitmap, R.drawable.ic_unlock_dot_e);
+        }
+        if (mDotBitmapCache != null) {
+            if (BITMAP_LOCK) {
+                loadDotBitmaps();
+            } else {
+                mDotBitmapCache.clear();
+            }
+        }
+    }
+
+    private void loadDotBitmaps() {
+        // the dots are a third of the radius of the view at scale 1
+        mDotBitmapCache.load(getResources(), Math.round(center/3), this);
+    }
+
+    /**
+     * Compute the bitmap lock points for the given width. The points only
+     * depend on the size of the view, so this is done once per layout
+     * instead of on every frame.
+     */
+    private void computeBitmapLockGeometry(int width) {
+        center = width/2;
+        RADIUS = center - RD;
+
+        float radius = RADIUS-SPACING;
+        mOval = new RectF( -radius, -radius, radius, radius);
+
+        float cx = (float)(RADIUS*Math.cos(45 * Math.PI / 180));
+        float cy = (float)(RADIUS*Math.sin(45 * Math.PI / 180));
+
+        /*
+        * 4 is center of the canvas (0, 0)
+        *
+        *             1
+
+        *       0           2
+
+        *  3          4          5
+
+        *       6           8
+
+        *             7
+        */
+        Point[] points = {new Point(-cx, -cy)/* 0 */,new Point(0, -RADIUS)/* 1 */,new Point(cx, -cy)/* 2 */,
+                new Point(-RADIUS, 0)/* 3 */,new Point(0, 0)/* 4 */,new Point(RADIUS, 0)/* 5 */,
+                new Point(-cx, cy)/* 6 */,new Point(0, RADIUS)/* 7 */,new Point(cx, cy)/* 8 */};
+        for (int i = 0; i < 3; i++) {
+            for (int j = 0; j < 3; j++) {
+                int index = i*3 + j;
+                points[index].row = i;
+                points[index].col = j;
+            }
+        }
+        mPoints = points;
+        buildBitmapSegmentTable();
+        mBackgroundLayerDirty = true;
+        if (BITMAP_LOCK && mDotBitmapCache != null) {
+            loadDotBitmaps();
+        }
+    }
+
+    /**
+     * Render the static artwork of the bitmap lock pattern into an offscreen
+     * layer, so that the dashed paths are rasterized only when the size or the
+     * configuration changes instead of on every frame.
+     */
+    private void buildBackgroundLayer() {
+        final int width = getWidth();
+        final int height = getHeight();
+        if (width <= 0 || height <= 0 || mPoints == null) {
+            return;
+        }
+        if (mBackgroundLayer == null || mBackgroundLayer.getWidth() != width
+                || mBackgroundLayer.getHeight() != height) {
+            if (mBackgroundLayer != null) {
+                mBackgroundLayer.recycle();
+            }
+            mBackgroundLayer = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        } else {
+            mBackgroundLayer.eraseColor(Color.TRANSPARENT);
+        }
+
+        final Canvas canvas = new Canvas(mBackgroundLayer);
+        // move origin to the center of the canvas
+        canvas.translate(center, center);
+
+        final Paint paint = new Paint();
+        paint.setAntiAlias(true);
+        paint.setDither(true);
+        paint.setStrokeWidth(2);
+
+        // dotted line
+        paint.setPathEffect (new DashPathEffect (new float[]{15, 18}, 0)) ;
+        // hollow
+        paint.setStyle(Paint.Style.STROKE);
+        paint.setColor(Color.parseColor("#444444"));
+        // dotted line Circle
+        canvas.drawCircle(0, 0, RADIUS+SPACING, paint);
+
+        // 0 -> 5 -> 6 -> 1 -> 8 -> 3 -> 2 -> 7 -> 0 -> 8
+        int[] p1 = {5,6,1,8,3,2,7,0,8};
+        Path path = new Path();
+        path.moveTo(mPoints[0].x, mPoints[0].y);
+        for(int i=0; i<p1.length; i++){
+            int pos = p1[i];
+            path.lineTo(mPoints[pos].x, mPoints[pos].y);
+        }
+        canvas.drawPath(path, paint);
+
+        // 1 -> 7
+        path.reset();
+        path.moveTo(mPoints[1].x, mPoints[1].y);
+        path.lineTo(mPoints[7].x, mPoints[7].y);
+        canvas.drawPath(path, paint);
+
+        // 2 -> 6
+        path.reset();
+        path.moveTo(mPoints[2].x, mPoints[2].y);
+        path.lineTo(mPoints[6].x, mPoints[6].y);
+        canvas.drawPath(path, paint);
+
+        // 3 -> 5
+        path.reset();
+        path.moveTo(mPoints[3].x, mPoints[3].y);
+        path.lineTo(mPoints[5].x, mPoints[5].y);
+        canvas.drawPath(path, paint);
+
+        // full line
+        paint.setPathEffect(null) ;
+        // full line Circle
+        canvas.drawCircle(0, 0, RADIUS-SPACING, paint);
+
+        // the points
+        for (int i = 0; i < mPoints.length; i++) {
+            drawCircle(canvas, paint, mPoints[i].x, mPoints[i].y);
+        }
+        mBackgroundLayerDirty = false;
+    }
+
+    /**
+     * Compute how every pair of {@link #mPoints} is joined: points on the
+     * circle at most a quarter turn apart by the shorter arc between them,
+     * the others by a chord. This is the only trigonometry of the bitmap lock
+     * segments, done once per layout, and holds for any layout of the points.
+     */
+    private void buildBitmapSegmentTable() {
+        final int count = mPoints.length;
+        mBitmapSegmentType = new byte[count * count];
+        mBitmapSegmentArcs = new float[count * count * ARC_STRIDE];
+        final float radius = mOval.width() / 2;
+        final float[] angles = new float[count];
+        final boolean[] onCircle = new boolean[count];
+        for (int i = 0; i < count; i++) {
+            final float x = mPoints[i].x;
+            final float y = mPoints[i].y;
+            onCircle[i] = RADIUS > 0
+                    && Math.abs((float) Math.hypot(x, y) - RADIUS) <= CIRCLE_TOLERANCE;
+            angles[i] = (float) Math.toDegrees(Math.atan2(y, x));
+        }
+        for (int from = 0; from < count; from++) {
+            for (int to = 0; to < count; to++) {
+                final int key = from * count + to;
+                mBitmapSegmentType[key] = SEGMENT_LINE;
+                if (from == to || !onCircle[from] || !onCircle[to]) {
+                    continue;
+                }
+                // the shorter way round
+                float sweep = angles[to] - angles[from];
+                if (sweep > 180f) {
+                    sweep -= 360f;
+                } else if (sweep < -180f) {
+                    sweep += 360f;
+                }
+                if (Math.abs(sweep) > MAX_ARC_SWEEP + ANGLE_TOLERANCE) {
+                    continue;
+                }
+                mBitmapSegmentType[key] = SEGMENT_ARC;
+                final int o = key * ARC_STRIDE;
+                final double start = Math.toRadians(angles[from]);
+                final double end = Math.toRadians(angles[from] + sweep);
+                mBitmapSegmentArcs[o] = angles[from];
+                mBitmapSegmentArcs[o + 1] = sweep;
+                mBitmapSegmentArcs[o + 2] = mOval.centerX() + (float) (radius * Math.cos(start));
+                mBitmapSegmentArcs[o + 3] = mOval.centerY() + (float) (radius * Math.sin(start));
+                mBitmapSegmentArcs[o + 4] = mOval.centerX() + (float) (radius * Math.cos(end));
+                mBitmapSegmentArcs[o + 5] = mOval.centerY() + (float) (radius * Math.sin(end));
+                mBitmapSegmentArcs[o + 6] = (float) (radius
+                        * (1 - Math.cos(Math.toRadians(Math.abs(sweep)) / 2)));
+            }
         }
     }
 
@@ -1350,19 +2209,9 @@ public class LockPatternView extends View {
         int row,col;
     }
 
-    private float calculateAngle(float x, float y){
-        double cosx = x/Math.sqrt(x*x+y*y);
-        double arc = Math.acos(cosx);
-        float angle = (float) (arc*180/Math.PI);
-        if(y < 0){
-            return 360.f - angle;
-        }
-        return angle;
-    }
-
-    private void drawCircle(Canvas canvas, float x, float y){
-        mPaint.setStyle(Paint.Style.FILL);
-        canvas.drawCircle(x, y, POINT_RADIUS, mPaint);
+    private void drawCircle(Canvas canvas, Paint paint, float x, float y){
+        paint.setStyle(Paint.Style.FILL);
+        canvas.drawCircle(x, y, BITMAP_POINT_RADIUS, paint);
     }
 
     private void drawCircleText(Canvas canvas, String text, float x, float y){
@@ -1372,18 +2221,15 @@ public class LockPatternView extends View {
     }
 
     private void drawCircleBitmap(Canvas canvas, float centerX, float centerY, int index, float scale) {
-        Bitmap tmp = null;
-        if (mPatternDisplayMode == DisplayMode.Wrong){
-            tmp = BitmapFactory.decodeResource(getResources(), mPointBitmapError[index]);
-        }else{
-            tmp = BitmapFactory.decodeResource(getResources(), mPointBitmap[index]);
+        final Bitmap bitmap = mDotBitmapCache.get(index,
+                mPatternDisplayMode == DisplayMode.Wrong, scale);
+        if (bitmap == null) {
+            // still decoding, the view is invalidated once the dots are ready
+            return;
         }
-        Log.e("SHUIYES","w: "+center);
-        int width = Math.round((center/3)*scale);
-        Bitmap bitmap = Bitmap.createScaledBitmap(tmp, width, width, true);;
-        canvas.drawBitmap(bitmap, centerX-bitmap.getWidth()/2, centerY-bitmap.getHeight()/2, mPathPaint);
-        tmp.recycle();
-        bitmap.recycle();
+        final float half = Math.round((center/3)*scale) / 2f;
+        mBitmapDst.set(centerX - half, centerY - half, centerX + half, centerY + half);
+        canvas.drawBitmap(bitmap, null, mBitmapDst, mPathPaint);
     }
 
     private void drawSingleLine(float fromX, float fromY, float endX, float endY, float radius, Path currentPath, Canvas canvas) {
@@ -1400,11 +2246,13 @@ public class LockPatternView extends View {
         currentPath.moveTo(from_x, from_y);
         currentPath.lineTo(end_x, end_y);
 
-        int color = getCurrentColor(true);
-        if(color == mRegularColor){
-            LinearGradient lg = new LinearGradient(fromX, fromY, endX, endY,
-                new int[]{mRegularColor, 0xff845f46}, null, Shader.TileMode.MIRROR);
-            mPathPaint.setShader(lg);
+        int color = getPatternColor(true);
+        if(color == mRegularColor && c != 0){
+            // map the unit gradient onto the segment instead of allocating a new one
+            mProgressShaderMatrix.setSinCos(endY - fromY, endX - fromX);
+            mProgressShaderMatrix.postTranslate(fromX, fromY);
+            mProgressShader.setLocalMatrix(mProgressShaderMatrix);
+            mPathPaint.setShader(mProgressShader);
         }else{
             mPathPaint.setColor(color);
             mPathPaint.setShader(null);
@@ -1423,10 +2271,22 @@ public class LockPatternView extends View {
         return Math.min(1f, Math.max(0f, (frac - 0.3f) * 4f));
     }
 
-    private int getCurrentColor(boolean partOfPattern) {
-        if(mPattern.size() == 0 || !isPatternRing(mCurrentRingRow,mCurrentRingColumn)){
+    /**
+     * @param cell The value of the cell to get the color for.
+     * @param partOfPattern Whether the cell is drawn as part of the pattern.
+     */
+    private int getCurrentColor(int cell, boolean partOfPattern) {
+        if (!mPatternState.isVisited(cell)) {
             return 0xffb3b3b3;
-        } else if (!partOfPattern || mInStealthMode || mPatternInProgress) {
+        }
+        return getPatternColor(partOfPattern);
+    }
+
+    /**
+     * @return The color of a cell which is part of the pattern.
+     */
+    private int getPatternColor(boolean partOfPattern) {
+        if (!partOfPattern || mInStealthMode || mPatternInProgress) {
             // unselected circle
             return mRegularColor;
         } else if (mPatternDisplayMode == DisplayMode.Wrong) {
@@ -1441,43 +2301,36 @@ public class LockPatternView extends View {
     }
 
     /**
-    * The current ring is painted in the pattern
-    */
-    private boolean isPatternRing(int row, int col){
-        boolean isPatternCircle = false;
-        for(int i = 0; i < mPattern.size(); i++){
-            Cell cell = mPattern.get(i);
-            if(cell.row == row && cell.column == col){
-                isPatternCircle = true;
-                break;
-            }
-        }
-        return isPatternCircle;
-     }
+     * @param color The color of the ring, see {@link #getCurrentColor}.
+     */
+    private void drawCircleRing(Canvas canvas, float centerX, float centerY, float radius,
+            int color, float alpha) {
+        configureRingPaint(color, radius);
+        canvas.drawCircle(centerX, centerY, radius, mPaint);
+        // default no shader
+        mPaint.setShader(null);
+    }
 
     /**
-     * @param partOfPattern Whether this circle is part of the pattern.
+     * Set up {@link #mPaint} to draw a ring of the given color and radius.
      */
-    private void drawCircleRing(Canvas canvas, float centerX, float centerY, float radius,
-            boolean partOfPattern, float alpha) {
+    private void configureRingPaint(int color, float radius) {
         mPaint.setStyle(Paint.Style.STROKE);
-
-        int color = getCurrentColor(partOfPattern);
         if(color == mRegularColor){
-            RadialGradient rg = new RadialGradient(radius, radius, radius,
-                    new int[] {color,0xff845f46},null, Shader.TileMode.MIRROR);
+            final int key = Math.round(radius);
+            Shader rg = mRingShaders.get(key);
+            if (rg == null) {
+                rg = createRingShader(key);
+                mRingShaders.put(key, rg);
+            }
             mPaint.setShader(rg);
         }else{
             mPaint.setColor(color);
             mPaint.setShader(null);
         }
-        canvas.drawCircle(centerX, centerY, radius, mPaint);
-        // default no shader
-        mPaint.setShader(null);
     }
 
     private void drawCirclePoint(Canvas canvas, float centerX, float centerY) {
-        mPaint.setColor(getCurrentColor(true /* partOfPattern */));
         mPaint.setStyle(Paint.Style.FILL);
         canvas.drawCircle(centerX, centerY, mDotSize/2+5, mPaint);
     }
@@ -1485,8 +2338,12 @@ public class LockPatternView extends View {
     @Override
     protected Parcelable onSaveInstanceState() {
         Parcelable superState = super.onSaveInstanceState();
+        final byte[] cells = new byte[mPatternState.size()];
+        for (int i = 0; i < cells.length; i++) {
+            cells[i] = (byte) mPatternState.get(i);
+        }
         return new SavedState(superState,
-                LockPatternUtils.patternToString(mPattern),
+                mGridSize, cells,
                 mPatternDisplayMode.ordinal(),
                 mInputEnabled, mInStealthMode, mEnableHapticFeedback);
     }
@@ -1495,9 +2352,15 @@ public class LockPatternView extends View {
     protected void onRestoreInstanceState(Parcelable state) {
         final SavedState ss = (SavedState) state;
         super.onRestoreInstanceState(ss.getSuperState());
-        setPattern(
-                DisplayMode.Correct,
-                LockPatternUtils.stringToPattern(ss.getSerializedPattern()));
+        if (!BITMAP_LOCK) {
+            setGridSize(ss.getGridSize());
+        }
+        final byte[] cells = ss.getCells();
+        final List<Cell> pattern = new ArrayList<Cell>(cells.length);
+        for (int i = 0; i < cells.length; i++) {
+            pattern.add(Cell.ofValue(cells[i], ss.getGridSize()));
+        }
+        setPattern(DisplayMode.Correct, pattern);
         mPatternDisplayMode = DisplayMode.values()[ss.getDisplayMode()];
         mInputEnabled = ss.isInputEnabled();
         mInStealthMode = ss.isInStealthMode();
@@ -1509,7 +2372,8 @@ public class LockPatternView extends View {
      */
     private static class SavedState extends BaseSavedState {
 
-        private final String mSerializedPattern;
+        private final int mGridSize;
+        private final byte[] mCells;
         private final int mDisplayMode;
         private final boolean mInputEnabled;
         private final boolean mInStealthMode;
@@ -1518,10 +2382,11 @@ public class LockPatternView extends View {
         /**
          * Constructor called from {@link LockPatternView#onSaveInstanceState()}
          */
-        private SavedState(Parcelable superState, String serializedPattern, int displayMode,
+        private SavedState(Parcelable superState, int gridSize, byte[] cells, int displayMode,
                 boolean inputEnabled, boolean inStealthMode, boolean tactileFeedbackEnabled) {
             super(superState);
-            mSerializedPattern = serializedPattern;
+            mGridSize = gridSize;
+            mCells = cells;
             mDisplayMode = displayMode;
             mInputEnabled = inputEnabled;
             mInStealthMode = inStealthMode;
@@ -1533,15 +2398,20 @@ public class LockPatternView extends View {
          */
         private SavedState(Parcel in) {
             super(in);
-            mSerializedPattern = in.readString();
+            mGridSize = in.readInt();
+            mCells = in.createByteArray();
             mDisplayMode = in.readInt();
             mInputEnabled = (Boolean) in.readValue(null);
             mInStealthMode = (Boolean) in.readValue(null);
             mTactileFeedbackEnabled = (Boolean) in.readValue(null);
         }
 
-        public String getSerializedPattern() {
-            return mSerializedPattern;
+        public int getGridSize() {
+            return mGridSize;
+        }
+
+        public byte[] getCells() {
+            return mCells;
         }
 
         public int getDisplayMode() {
@@ -1563,7 +2433,8 @@ public class LockPatternView extends View {
         @Override
         public void writeToParcel(Parcel dest, int flags) {
             super.writeToParcel(dest, flags);
-            dest.writeString(mSerializedPattern);
+            dest.writeInt(mGridSize);
+            dest.writeByteArray(mCells);
             dest.writeInt(mDisplayMode);
             dest.writeValue(mInputEnabled);
             dest.writeValue(mInStealthMode);
@@ -1615,7 +2486,8 @@ public class LockPatternView extends View {
             if (!mPatternInProgress) {
                 return;
             }
-            for (int i = VIRTUAL_BASE_VIEW_ID; i < VIRTUAL_BASE_VIEW_ID + 9; i++) {
+            final int cells = mGridSize * mGridSize;
+            for (int i = VIRTUAL_BASE_VIEW_ID; i < VIRTUAL_BASE_VIEW_ID + cells; i++) {
                 if (!mItems.containsKey(i)) {
                     VirtualViewContainer item = new VirtualViewContainer(getTextForVirtualView(i));
                     mItems.put(i, item);
@@ -1674,9 +2546,7 @@ public class LockPatternView extends View {
         private boolean isClickable(int virtualViewId) {
             // Dots are clickable if they're not part of the current pattern.
             if (virtualViewId != ExploreByTouchHelper.INVALID_ID) {
-                int row = (virtualViewId - VIRTUAL_BASE_VIEW_ID) / 3;
-                int col = (virtualViewId - VIRTUAL_BASE_VIEW_ID) % 3;
-                return !mPatternDrawLookup[row][col];
+                return !mPatternState.isVisited(virtualViewId - VIRTUAL_BASE_VIEW_ID);
             }
             return false;
         }
@@ -1720,17 +2590,8 @@ public class LockPatternView extends View {
         private Rect getBoundsForVirtualView(int virtualViewId) {
             int ordinal = virtualViewId - VIRTUAL_BASE_VIEW_ID;
             final Rect bounds = mTempRect;
-            final int row = ordinal / 3;
-            final int col = ordinal % 3;
-            final CellState cell = mCellStates[row][col];
-            float centerX = getCenterXForColumn(col);
-            float centerY = getCenterYForRow(row);
-            float cellheight = mSquareHeight * mHitFactor * 0.5f;
-            float cellwidth = mSquareWidth * mHitFactor * 0.5f;
-            bounds.left = (int) (centerX - cellwidth);
-            bounds.right = (int) (centerX + cellwidth);
-            bounds.top = (int) (centerY - cellheight);
-            bounds.bottom = (int) (centerY + cellheight);
+            // the same boxes as touches are tested against
+            mHitIndex.getCellBounds(ordinal, bounds);
             return bounds;
         }
 
@@ -1749,16 +2610,12 @@ public class LockPatternView extends View {
          * @return VIRTUAL_BASE_VIEW_ID+id or 0 if no view was hit
          */
         private int getVirtualViewIdForHit(float x, float y) {
-            final int rowHit = getRowHit(y);
-            if (rowHit < 0) {
-                return ExploreByTouchHelper.INVALID_ID;
-            }
-            final int columnHit = getColumnHit(x);
-            if (columnHit < 0) {
+            final int cellHit = mHitIndex.getCellAt(x, y);
+            if (cellHit < 0) {
                 return ExploreByTouchHelper.INVALID_ID;
             }
-            boolean dotAvailable = mPatternDrawLookup[rowHit][columnHit];
-            int dotId = (rowHit * 3 + columnHit) + VIRTUAL_BASE_VIEW_ID;
+            boolean dotAvailable = mPatternState.isVisited(cellHit);
+            int dotId = cellHit + VIRTUAL_BASE_VIEW_ID;
             int view = dotAvailable ? dotId : ExploreByTouchHelper.INVALID_ID;
             if (DEBUG_A11Y) Log.v(TAG, "getVirtualViewIdForHit(" + x + "," + y + ") => "
                     + view + "avail =" + dotAvailable);
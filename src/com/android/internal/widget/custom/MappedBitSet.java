@@ -0,0 +1,190 @@
+package com.android.internal.widget.custom;
+
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.BitSet;
+
+/**
+ * A read only set of bits memory-mapped from a file, so a set of any size
+ * is opened without reading or parsing it and each lookup is one memory read.
+ *
+ * The file starts with a magic number and the number of bits, big endian,
+ * then the bits, the lowest index in the lowest bit of the first byte.
+ * The file can also be built from a list shipped as a raw resource, see
+ * {@link #openList}.
+ */
+final class MappedBitSet {
+    private static final String TAG = "MappedBitSet";
+
+    // "SYBS"
+    private static final int MAGIC = 0x53594253;
+    private static final int HEADER_SIZE = 8;
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final Charset US_ASCII = Charset.forName("US-ASCII");
+
+    /**
+     * Maps the entries of a list to their bit.
+     */
+    interface Indexer {
+        /**
+         * @return The bit of an entry, or -1 if it's not a valid one.
+         */
+        int indexOf(String entry);
+    }
+
+    private final ByteBuffer mBits;
+    private final int mSize;
+
+    private MappedBitSet(ByteBuffer bits, int size) {
+        mBits = bits;
+        mSize = size;
+    }
+
+    /**
+     * Map a file written by {@link #write}.
+     * @param size The number of bits the file must hold.
+     * @throws IOException if the file can't be read or doesn't hold a set of that size.
+     */
+    static MappedBitSet open(File file, int size) throws IOException {
+        final RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            final FileChannel channel = in.getChannel();
+            final long length = HEADER_SIZE + byteCount(size);
+            if (channel.size() != length) {
+                throw new IOException("bad size " + channel.size() + " for " + size
+                        + " bits: " + file);
+            }
+            final ByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+            if (mapped.getInt(0) != MAGIC || mapped.getInt(4) != size) {
+                throw new IOException("bad header: " + file);
+            }
+            mapped.position(HEADER_SIZE);
+            // the mapping stays valid once the file is closed
+            return new MappedBitSet(mapped.slice(), size);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Map the set of a list shipped as a raw resource, building the file
+     * from it first if the file is missing or older than the installed app.
+     * The list has an entry per line, blank lines and lines starting with '#'
+     * are skipped, and so are the entries that aren't valid.
+     * @param size The number of bits.
+     * @throws IOException if the list can't be read or the file written or mapped.
+     */
+    static MappedBitSet openList(Context context, int listId, File file, int size,
+            Indexer indexer) throws IOException {
+        if (!file.exists() || file.lastModified() < installTime(context)) {
+            write(file, readList(context, listId, size, indexer), size);
+        }
+        return open(file, size);
+    }
+
+    private static BitSet readList(Context context, int listId, int size, Indexer indexer)
+            throws IOException {
+        final BitSet bits = new BitSet(size);
+        final BufferedReader in = new BufferedReader(new InputStreamReader(
+                context.getResources().openRawResource(listId), US_ASCII));
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                line = line.trim();
+                if (line.length() == 0 || line.charAt(0) == '#') {
+                    continue;
+                }
+                final int index = indexer.indexOf(line);
+                if (index < 0 || index >= size) {
+                    Log.w(TAG, "skipping invalid entry " + line);
+                    continue;
+                }
+                bits.set(index);
+            }
+        } finally {
+            in.close();
+        }
+        return bits;
+    }
+
+    /**
+     * @return When the app was installed or last updated, in milliseconds
+     * since the epoch.
+     */
+    private static long installTime(Context context) {
+        try {
+            return context.getPackageManager()
+                    .getPackageInfo(context.getPackageName(), 0).lastUpdateTime;
+        } catch (PackageManager.NameNotFoundException e) {
+            // can't be, it's our own package; rebuild to be safe
+            return Long.MAX_VALUE;
+        }
+    }
+
+    /**
+     * Write a set of bits in the format {@link #open} maps. It goes to a
+     * temporary file renamed over the file once complete, so the file is
+     * never seen half written.
+     * @param size The number of bits, the set has none at or past it.
+     */
+    static void write(File file, BitSet bits, int size) throws IOException {
+        if (bits.length() > size) {
+            throw new IllegalArgumentException("bit " + (bits.length() - 1)
+                    + " out of range " + size);
+        }
+        final ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + byteCount(size));
+        buffer.putInt(MAGIC).putInt(size);
+        for (int i = bits.nextSetBit(0); i >= 0; i = bits.nextSetBit(i + 1)) {
+            final int index = HEADER_SIZE + (i >>> 3);
+            buffer.put(index, (byte) (buffer.get(index) | (1 << (i & 7))));
+        }
+        buffer.rewind();
+        final File temp = new File(file.getPath() + TEMP_SUFFIX);
+        final FileOutputStream out = new FileOutputStream(temp);
+        try {
+            final FileChannel channel = out.getChannel();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(true);
+        } finally {
+            out.close();
+        }
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            throw new IOException("couldn't rename " + temp + " to " + file);
+        }
+    }
+
+    /**
+     * @return The number of bits.
+     */
+    int size() {
+        return mSize;
+    }
+
+    /**
+     * @return Whether a bit is set.
+     */
+    boolean get(int index) {
+        if (index < 0 || index >= mSize) {
+            throw new IndexOutOfBoundsException("index " + index + " out of range " + mSize);
+        }
+        return (mBits.get(index >>> 3) & (1 << (index & 7))) != 0;
+    }
+
+    private static int byteCount(int size) {
+        return (size + 7) >>> 3;
+    }
+}
@@ -0,0 +1,100 @@
+package com.android.internal.widget.custom;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.example.locknumber.R;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.BitSet;
+
+/**
+ * The patterns too easy to guess to be enrolled: common shapes, letters,
+ * long straight lines. The list is a file in the app's files directory, a
+ * {@link MappedBitSet} with a bit per valid pattern, indexed by its rank,
+ * see {@link LockPatternUtils#packedToRank(long)}, so checking a pattern is
+ * ranking it and reading one bit.
+ *
+ * The file is built from the list shipped in res/raw when it is missing or
+ * older than the app, and mapped, on a background thread when the blocklist
+ * is first used. Checks don't wait for it: until it is mapped, no pattern is
+ * blocked.
+ */
+public final class PatternBlocklist {
+    private static final String TAG = "PatternBlocklist";
+
+    /** The name of the blocklist file in the app's files directory */
+    public static final String FILE_NAME = "pattern_blocklist";
+
+    private static final MappedBitSet.Indexer INDEXER = new MappedBitSet.Indexer() {
+        @Override
+        public int indexOf(String entry) {
+            return LockPatternUtils.packedToRank(LockPatternUtils.stringToPacked(entry));
+        }
+    };
+
+    private static PatternBlocklist sInstance;
+
+    private volatile MappedBitSet mBlocked;
+
+    /**
+     * @return The blocklist of the app, which starts mapping its file if it's
+     * the first use.
+     */
+    public static synchronized PatternBlocklist getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new PatternBlocklist(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private PatternBlocklist(final Context context) {
+        final Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    mBlocked = MappedBitSet.openList(context, R.raw.pattern_blocklist,
+                            new File(context.getFilesDir(), FILE_NAME),
+                            LockPatternUtils.getPatternCount(), INDEXER);
+                } catch (IOException e) {
+                    Log.e(TAG, "couldn't map the blocklist, no pattern is blocked", e);
+                }
+            }
+        }, TAG);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * @return Whether a packed pattern is on the blocklist. Patterns that
+     * aren't valid are never on it.
+     */
+    public boolean isBlocked(long packed) {
+        final int rank = LockPatternUtils.packedToRank(packed);
+        if (rank < 0) {
+            return false;
+        }
+        final MappedBitSet blocked = mBlocked;
+        return blocked != null && blocked.get(rank);
+    }
+
+    /**
+     * Write a blocklist file, for the tools building the lists.
+     * @param patterns The packed patterns to block, see
+     * {@link LockPatternUtils#stringToPacked(CharSequence)}.
+     * @throws IllegalArgumentException if a pattern is not valid.
+     */
+    public static void write(File file, long[] patterns) throws IOException {
+        final BitSet blocked = new BitSet(LockPatternUtils.getPatternCount());
+        for (long packed : patterns) {
+            final int rank = LockPatternUtils.packedToRank(packed);
+            if (rank < 0) {
+                throw new IllegalArgumentException("invalid pattern 0x"
+                        + Long.toHexString(packed));
+            }
+            blocked.set(rank);
+        }
+        MappedBitSet.write(file, blocked, LockPatternUtils.getPatternCount());
+    }
+}
@@ -0,0 +1,164 @@
+package com.android.internal.widget.custom;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Enumerates every pattern {@link LockPatternView} can produce, under the
+ * rules of {@link PatternRules}: cells are distinct, and a move over a cell
+ * not yet in the pattern isn't possible since that cell gets filled in.
+ *
+ * The patterns are delivered packed, see {@link PatternState#toPacked()},
+ * and the walk itself allocates nothing per pattern. The pattern space is
+ * split on the first cells into tasks run in parallel on a fork/join pool,
+ * whose subtrees are then walked depth first.
+ */
+public final class PatternEnumerator {
+
+    public interface Sink {
+        /**
+         * Called with each pattern, from the threads of the pool, so
+         * concurrently; it must be thread safe.
+         */
+        void accept(long packed);
+    }
+
+    private static final int CELLS = 9;
+    // prefixes of this size are the units of work: 9 * 8 tasks at most
+    private static final int SPLIT_SIZE = 2;
+
+    private static ForkJoinPool sPool;
+
+    private PatternEnumerator() {
+    }
+
+    /**
+     * @return The number of valid patterns of at least
+     * {@link LockPatternUtils#MIN_LOCK_PATTERN_SIZE} cells.
+     */
+    public static long count() {
+        return count(LockPatternUtils.MIN_LOCK_PATTERN_SIZE, PatternState.MAX_SIZE);
+    }
+
+    /**
+     * @return The number of valid patterns with a size between the bounds, inclusive.
+     */
+    public static long count(int minSize, int maxSize) {
+        return enumerate(minSize, maxSize, null);
+    }
+
+    /**
+     * Deliver every valid pattern with a size between the bounds, inclusive,
+     * to a sink, in no particular order.
+     * @param sink The sink, or null to only count the patterns.
+     * @return The number of patterns.
+     */
+    public static long enumerate(int minSize, int maxSize, Sink sink) {
+        if (minSize < 1 || maxSize > PatternState.MAX_SIZE || minSize > maxSize) {
+            throw new IllegalArgumentException("bad size range " + minSize + ".." + maxSize);
+        }
+        return getPool().invoke(new PrefixTask(0, 0, -1, 0, minSize, maxSize, sink));
+    }
+
+    /**
+     * Like {@link #enumerate(int, int, Sink)} but on the calling thread, for
+     * sinks that aren't thread safe.
+     */
+    public static long enumerateSequential(int minSize, int maxSize, Sink sink) {
+        if (minSize < 1 || maxSize > PatternState.MAX_SIZE || minSize > maxSize) {
+            throw new IllegalArgumentException("bad size range " + minSize + ".." + maxSize);
+        }
+        return walk(0, 0, -1, 0, minSize, maxSize, sink);
+    }
+
+    private static synchronized ForkJoinPool getPool() {
+        if (sPool == null) {
+            sPool = new ForkJoinPool();
+        }
+        return sPool;
+    }
+
+    /**
+     * Walk the patterns starting with a prefix, depth first.
+     * @param cells The cells of the prefix, packed without the size.
+     * @param visited The cells of the prefix, as a mask.
+     * @param last The last cell of the prefix, or -1 if it's empty.
+     */
+    private static long walk(long cells, int visited, int last, int size,
+            int minSize, int maxSize, Sink sink) {
+        long count = 0;
+        if (size >= minSize) {
+            if (sink != null) {
+                sink.accept(cells | ((long) size << PatternState.SIZE_SHIFT));
+            }
+            count++;
+        }
+        if (size == maxSize) {
+            return count;
+        }
+        for (int next = 0; next < CELLS; next++) {
+            if ((visited & (1 << next)) != 0
+                    || (last >= 0 && !PatternRules.GRID_3.isDirect(last, next, visited))) {
+                continue;
+            }
+            count += walk(cells | ((long) next << (size * PatternState.BITS_PER_CELL)),
+                    visited | (1 << next), next, size + 1, minSize, maxSize, sink);
+        }
+        return count;
+    }
+
+    private static final class PrefixTask extends RecursiveTask<Long> {
+        private static final long serialVersionUID = 1L;
+
+        private final long mCells;
+        private final int mVisited;
+        private final int mLast;
+        private final int mSize;
+        private final int mMinSize;
+        private final int mMaxSize;
+        private final Sink mSink;
+
+        PrefixTask(long cells, int visited, int last, int size, int minSize, int maxSize,
+                Sink sink) {
+            mCells = cells;
+            mVisited = visited;
+            mLast = last;
+            mSize = size;
+            mMinSize = minSize;
+            mMaxSize = maxSize;
+            mSink = sink;
+        }
+
+        @Override
+        protected Long compute() {
+            if (mSize >= SPLIT_SIZE || mSize == mMaxSize) {
+                return walk(mCells, mVisited, mLast, mSize, mMinSize, mMaxSize, mSink);
+            }
+
+            long count = 0;
+            if (mSize >= mMinSize) {
+                if (mSink != null) {
+                    mSink.accept(mCells | ((long) mSize << PatternState.SIZE_SHIFT));
+                }
+                count++;
+            }
+            final List<PrefixTask> tasks = new ArrayList<PrefixTask>(CELLS);
+            for (int next = 0; next < CELLS; next++) {
+                if ((mVisited & (1 << next)) != 0
+                        || (mLast >= 0 && !PatternRules.GRID_3.isDirect(mLast, next, mVisited))) {
+                    continue;
+                }
+                tasks.add(new PrefixTask(
+                        mCells | ((long) next << (mSize * PatternState.BITS_PER_CELL)),
+                        mVisited | (1 << next), next, mSize + 1, mMinSize, mMaxSize, mSink));
+            }
+            invokeAll(tasks);
+            for (int i = 0; i < tasks.size(); i++) {
+                count += tasks.get(i).join();
+            }
+            return count;
+        }
+    }
+}
@@ -0,0 +1,165 @@
+package com.android.internal.widget.custom;
+
+/**
+ * The rules of a move between two cells of an N X N grid, precomputed for
+ * every (from, to) pair: the cell jumped over that gets filled in, and how
+ * the segment between them is drawn.
+ *
+ * Cells are identified by their value, see {@link LockPatternView.Cell#getValue()}.
+ * Hit testing, drawing and the pattern checks all read these tables, so the
+ * rules have a single definition. There is one instance per grid size, built
+ * on first use; {@link #GRID_3} is the grid of the packed pattern codecs and
+ * of the bitmap lock, whose arcs and chords follow the positions of its
+ * points instead, see LockPatternView.
+ */
+final class PatternRules {
+
+    /** No cell is filled in between the two cells */
+    static final int NONE = -1;
+
+    static final int MIN_GRID_SIZE = 3;
+    static final int MAX_GRID_SIZE = 8;
+
+    /** The grid segment is drawn as two halves meeting at the cell between */
+    private static final int FLAG_SPLIT = 1;
+
+    private static final PatternRules[] sRules = new PatternRules[MAX_GRID_SIZE + 1];
+
+    /** The rules of the 3 X 3 grid */
+    static final PatternRules GRID_3 = forGridSize(3);
+
+    private final int mGridSize;
+    private final int mCells;
+    private final byte[] mBetween;
+    private final byte[] mFlags;
+
+    /**
+     * @return The rules of the grid of the given size, between
+     * {@link #MIN_GRID_SIZE} and {@link #MAX_GRID_SIZE}.
+     */
+    static synchronized PatternRules forGridSize(int gridSize) {
+        if (gridSize < MIN_GRID_SIZE || gridSize > MAX_GRID_SIZE) {
+            throw new IllegalArgumentException("grid size must be in range "
+                    + MIN_GRID_SIZE + "-" + MAX_GRID_SIZE);
+        }
+        if (sRules[gridSize] == null) {
+            sRules[gridSize] = new PatternRules(gridSize);
+        }
+        return sRules[gridSize];
+    }
+
+    private PatternRules(int gridSize) {
+        mGridSize = gridSize;
+        mCells = gridSize * gridSize;
+        mBetween = new byte[mCells * mCells];
+        mFlags = new byte[mCells * mCells];
+        for (int from = 0; from < mCells; from++) {
+            for (int to = 0; to < mCells; to++) {
+                final int index = from * mCells + to;
+                if (from == to) {
+                    mBetween[index] = NONE;
+                    continue;
+                }
+                mBetween[index] = (byte) (gridSize == 3
+                        ? computeBetween3(from, to) : computeBetween(from, to));
+                mFlags[index] = (byte) computeFlags(from, to);
+            }
+        }
+    }
+
+    int getGridSize() {
+        return mGridSize;
+    }
+
+    /**
+     * @return The cell filled in when going from one cell to the other, the
+     * nearest to the first one when several are jumped over, or {@link #NONE}.
+     */
+    int between(int from, int to) {
+        return mBetween[from * mCells + to];
+    }
+
+    /**
+     * @return Whether a pattern can go from one cell straight to the other,
+     * that is no cell is between them or they are all already in the pattern.
+     * @param visited The cells of the pattern, as a mask of cell values.
+     */
+    boolean isDirect(int from, int to, long visited) {
+        int between = mBetween[from * mCells + to];
+        while (between != NONE) {
+            if ((visited & (1L << between)) == 0) {
+                return false;
+            }
+            between = mBetween[between * mCells + to];
+        }
+        return true;
+    }
+
+    /**
+     * @return Whether the grid segment between the cells is drawn as two
+     * halves meeting at their midpoint.
+     */
+    boolean isSplit(int from, int to) {
+        return (mFlags[from * mCells + to] & FLAG_SPLIT) != 0;
+    }
+
+    /**
+     * The cells jumped over are the grid points on the way, the nearest one
+     * is filled in, then the next one on the way on from it.
+     */
+    private int computeBetween(int from, int to) {
+        final int dRow = to / mGridSize - from / mGridSize;
+        final int dColumn = to % mGridSize - from % mGridSize;
+        final int steps = gcd(Math.abs(dRow), Math.abs(dColumn));
+        if (steps == 1) {
+            return NONE;
+        }
+        return from + (dRow / steps) * mGridSize + dColumn / steps;
+    }
+
+    private int computeFlags(int from, int to) {
+        final int dRow = to / mGridSize - from / mGridSize;
+        final int dColumn = to % mGridSize - from % mGridSize;
+        return dRow % 2 == 0 && dColumn % 2 == 0 ? FLAG_SPLIT : 0;
+    }
+
+    private static int gcd(int a, int b) {
+        while (b != 0) {
+            final int r = a % b;
+            a = b;
+            b = r;
+        }
+        return a;
+    }
+
+    private static int computeBetween3(int from, int to) {
+        final int fromRow = from / 3;
+        final int fromColumn = from % 3;
+        final int toRow = to / 3;
+        final int toColumn = to % 3;
+        final int dRow = toRow - fromRow;
+        final int dColumn = toColumn - fromColumn;
+
+        int fillInRow = fromRow;
+        int fillInColumn = fromColumn;
+        if (Math.abs(dRow) == 1 && Math.abs(dColumn) == 1 && to != 4 && from != 4) {
+            // diagonal neighbours around the center fill in the corner next to them
+            if (toRow == 0 || toRow == 2) {
+                fillInRow = toRow;
+                fillInColumn = fromColumn;
+            } else if (fromRow == 0 || fromRow == 2) {
+                fillInRow = fromRow;
+                fillInColumn = toColumn;
+            }
+        } else {
+            if (Math.abs(dRow) == 2 && Math.abs(dColumn) != 1) {
+                fillInRow = fromRow + ((dRow > 0) ? 1 : -1);
+            }
+            if (Math.abs(dColumn) == 2 && Math.abs(dRow) != 1) {
+                fillInColumn = fromColumn + ((dColumn > 0) ? 1 : -1);
+            }
+        }
+        final int fillIn = fillInRow * 3 + fillInColumn;
+        return fillIn == from ? NONE : fillIn;
+    }
+}
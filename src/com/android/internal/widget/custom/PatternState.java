@@ -0,0 +1,145 @@
+package com.android.internal.widget.custom;
+
+/**
+ * Compact state of a pattern being drawn on the grid: a bitmask of the
+ * visited cells and the cells in order.
+ *
+ * Cells are identified by their value, see {@link LockPatternView.Cell#getValue()}.
+ * Membership tests are a single bit test, so the view does not need to scan
+ * the list of cells while drawing. Patterns of the 3 X 3 grid also have a
+ * packed form, the cells 4 bits each in a long, see {@link #toPacked()}.
+ */
+public final class PatternState {
+
+    /**
+     * The maximum number of cells of a pattern of the 3 X 3 grid, and of a
+     * packed pattern.
+     */
+    public static final int MAX_SIZE = 9;
+
+    /**
+     * The maximum number of cells of a pattern of any grid.
+     */
+    public static final int MAX_CELLS = 64;
+
+    static final int BITS_PER_CELL = 4;
+    static final int CELL_MASK = (1 << BITS_PER_CELL) - 1;
+    /** The packed form keeps the number of cells in its top bits */
+    static final int SIZE_SHIFT = 60;
+
+    private long mVisited;
+    private final byte[] mCells = new byte[MAX_CELLS];
+    private int mSize;
+
+    /**
+     * Append a cell to the pattern.
+     * @param cell The value of the cell, it must not be part of the pattern yet.
+     */
+    public void add(int cell) {
+        if (cell < 0 || cell >= MAX_CELLS) {
+            throw new IllegalArgumentException("cell must be in range 0-" + (MAX_CELLS - 1));
+        }
+        if (isVisited(cell)) {
+            throw new IllegalStateException("cell " + cell + " is already part of the pattern");
+        }
+        mVisited |= 1L << cell;
+        mCells[mSize++] = (byte) cell;
+    }
+
+    /**
+     * @return Whether the cell is part of the pattern.
+     */
+    public boolean isVisited(int cell) {
+        return (mVisited & (1L << cell)) != 0;
+    }
+
+    /**
+     * @return The bitmask of the cells of the pattern, bit n being set when the
+     * cell of value n is part of the pattern.
+     */
+    public long getVisited() {
+        return mVisited;
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    public boolean isEmpty() {
+        return mSize == 0;
+    }
+
+    /**
+     * @return The value of the cell at the given position of the pattern.
+     */
+    public int get(int index) {
+        if (index < 0 || index >= mSize) {
+            throw new IndexOutOfBoundsException("index " + index + " size " + mSize);
+        }
+        return mCells[index];
+    }
+
+    /**
+     * @return The value of the last cell of the pattern, or -1 if it is empty.
+     */
+    public int last() {
+        return mSize == 0 ? -1 : mCells[mSize - 1];
+    }
+
+    public void clear() {
+        mVisited = 0;
+        mSize = 0;
+    }
+
+    /**
+     * @return The pattern packed into a long, the cells 4 bits each from the
+     * lowest bits and the number of cells in the top 4 bits, or
+     * {@link LockPatternUtils#INVALID_PATTERN} if it has too many cells or a
+     * cell past the 3 X 3 grid. The state doesn't know its grid, the caller
+     * must check it's 3 X 3, see {@link LockPatternView#getPackedPattern()}.
+     */
+    public long toPacked() {
+        if (mSize > MAX_SIZE || (mVisited >>> MAX_SIZE) != 0) {
+            return LockPatternUtils.INVALID_PATTERN;
+        }
+        long packed = (long) mSize << SIZE_SHIFT;
+        for (int i = 0; i < mSize; i++) {
+            packed |= (long) mCells[i] << (i * BITS_PER_CELL);
+        }
+        return packed;
+    }
+
+    /**
+     * Replace the pattern by a packed one.
+     * @param packed A pattern as returned by {@link #toPacked()}.
+     */
+    public void setPacked(long packed) {
+        final int size = sizeOf(packed);
+        if (size > MAX_SIZE) {
+            throw new IllegalArgumentException("invalid packed pattern " + Long.toHexString(packed));
+        }
+        clear();
+        for (int i = 0; i < size; i++) {
+            final int cell = cellAt(packed, i);
+            if (cell >= MAX_SIZE) {
+                throw new IllegalArgumentException("invalid packed pattern "
+                        + Long.toHexString(packed));
+            }
+            add(cell);
+        }
+    }
+
+    /**
+     * @return The number of cells of a packed pattern.
+     */
+    public static int sizeOf(long packed) {
+        return (int) (packed >>> SIZE_SHIFT);
+    }
+
+    /**
+     * @return The value of the cell at the given position of a packed pattern.
+     */
+    public static int cellAt(long packed, int index) {
+        return (int) (packed >>> (index * BITS_PER_CELL)) & CELL_MASK;
+    }
+}
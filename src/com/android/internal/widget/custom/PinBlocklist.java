@@ -0,0 +1,119 @@
+package com.android.internal.widget.custom;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.example.locknumber.R;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.BitSet;
+
+/**
+ * The 6 digit PINs too easy to guess to be enrolled: repeated and
+ * sequential digits, keypad shapes, the most common ones. The list is a
+ * file in the app's files directory, a {@link MappedBitSet} with a bit per
+ * PIN indexed by its numeric value, 125 KB, so checking a PIN is reading
+ * one bit.
+ *
+ * The file is built from the list shipped in res/raw when it is missing or
+ * older than the app, and mapped, on a background thread when the blocklist
+ * is first used. Checks don't wait for it: until it is mapped, no PIN is
+ * blocked.
+ */
+public final class PinBlocklist {
+    private static final String TAG = "PinBlocklist";
+
+    /** The name of the blocklist file in the app's files directory */
+    public static final String FILE_NAME = "pin_blocklist";
+
+    /** The number of digits of the PINs on the list */
+    public static final int PIN_LENGTH = 6;
+
+    private static final int PIN_COUNT = 1000000;
+
+    private static final MappedBitSet.Indexer INDEXER = new MappedBitSet.Indexer() {
+        @Override
+        public int indexOf(String entry) {
+            return PinBlocklist.indexOf(entry);
+        }
+    };
+
+    private static PinBlocklist sInstance;
+
+    private volatile MappedBitSet mBlocked;
+
+    /**
+     * @return The blocklist of the app, which starts mapping its file if it's
+     * the first use.
+     */
+    public static synchronized PinBlocklist getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new PinBlocklist(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private PinBlocklist(final Context context) {
+        final Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    mBlocked = MappedBitSet.openList(context, R.raw.pin_blocklist,
+                            new File(context.getFilesDir(), FILE_NAME), PIN_COUNT, INDEXER);
+                } catch (IOException e) {
+                    Log.e(TAG, "couldn't map the blocklist, no PIN is blocked", e);
+                }
+            }
+        }, TAG);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * @return Whether a PIN is on the blocklist. PINs that aren't
+     * {@link #PIN_LENGTH} digits are never on it.
+     */
+    public boolean isBlocked(CharSequence pin) {
+        final int index = indexOf(pin);
+        if (index < 0) {
+            return false;
+        }
+        final MappedBitSet blocked = mBlocked;
+        return blocked != null && blocked.get(index);
+    }
+
+    /**
+     * Write a blocklist file, for the tools building the lists.
+     * @throws IllegalArgumentException if a PIN is not {@link #PIN_LENGTH} digits.
+     */
+    public static void write(File file, CharSequence[] pins) throws IOException {
+        final BitSet blocked = new BitSet(PIN_COUNT);
+        for (CharSequence pin : pins) {
+            final int index = indexOf(pin);
+            if (index < 0) {
+                throw new IllegalArgumentException("invalid PIN " + pin);
+            }
+            blocked.set(index);
+        }
+        MappedBitSet.write(file, blocked, PIN_COUNT);
+    }
+
+    /**
+     * @return The numeric value of a PIN, or -1 if it's not {@link #PIN_LENGTH} digits.
+     */
+    private static int indexOf(CharSequence pin) {
+        if (pin == null || pin.length() != PIN_LENGTH) {
+            return -1;
+        }
+        int index = 0;
+        for (int i = 0; i < PIN_LENGTH; i++) {
+            final int digit = pin.charAt(i) - '0';
+            if (digit < 0 || digit > 9) {
+                return -1;
+            }
+            index = index * 10 + digit;
+        }
+        return index;
+    }
+}
@@ -0,0 +1,155 @@
+package com.android.internal.widget.custom;
+
+import android.animation.Animator;
+import android.animation.TimeInterpolator;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.util.Log;
+import android.view.View;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+
+/**
+ * Access to the canvas property animations run by the RenderThread
+ * (android.graphics.CanvasProperty, android.view.RenderNodeAnimator and
+ * DisplayListCanvas#drawCircle), which the platform LockPatternView uses for
+ * its cell animations but which are not part of the public SDK.
+ *
+ * Everything is looked up once by reflection. When something is missing
+ * {@link #isSupported()} returns false and callers should animate on the UI
+ * thread instead.
+ */
+final class RenderThreadAnimator {
+    private static final String TAG = "RenderThreadAnimator";
+
+    private static final boolean sSupported;
+    private static Method sCreateFloat;
+    private static Method sCreatePaint;
+    private static Constructor<?> sFloatAnimator;
+    private static Constructor<?> sPaintAnimator;
+    private static Method sSetTarget;
+    private static int sPaintAlpha;
+    private static Class<?> sRecordingCanvas;
+    private static Method sDrawCircle;
+
+    static {
+        boolean supported = false;
+        try {
+            final Class<?> property = Class.forName("android.graphics.CanvasProperty");
+            sCreateFloat = property.getMethod("createFloat", float.class);
+            sCreatePaint = property.getMethod("createPaint", Paint.class);
+
+            final Class<?> animator = Class.forName("android.view.RenderNodeAnimator");
+            sFloatAnimator = animator.getConstructor(property, float.class);
+            sPaintAnimator = animator.getConstructor(property, int.class, float.class);
+            sSetTarget = animator.getMethod("setTarget", View.class);
+            sPaintAlpha = animator.getField("PAINT_ALPHA").getInt(null);
+
+            sRecordingCanvas = Class.forName("android.view.DisplayListCanvas");
+            sDrawCircle = sRecordingCanvas.getMethod("drawCircle",
+                    property, property, property, property);
+            supported = true;
+        } catch (ReflectiveOperationException e) {
+            Log.w(TAG, "RenderThread animations not available", e);
+        } catch (RuntimeException e) {
+            Log.w(TAG, "RenderThread animations not available", e);
+        }
+        sSupported = supported;
+    }
+
+    // reused for the draw calls, only touched from the UI thread
+    private static final Object[] sDrawArgs = new Object[4];
+
+    private RenderThreadAnimator() {
+    }
+
+    static boolean isSupported() {
+        return sSupported;
+    }
+
+    /**
+     * @return A new CanvasProperty&lt;Float&gt; holding the value.
+     */
+    static Object createFloat(float value) {
+        return invoke(sCreateFloat, null, value);
+    }
+
+    /**
+     * @return A new CanvasProperty&lt;Paint&gt; holding a copy of the paint.
+     */
+    static Object createPaint(Paint paint) {
+        return invoke(sCreatePaint, null, new Paint(paint));
+    }
+
+    /**
+     * Create an animation of a float property, to be run on the RenderThread
+     * of the target view. The animation starts from the current value of the
+     * property when its start delay elapsed.
+     */
+    static Animator animateFloat(Object property, float endValue, View target,
+            long delay, long duration, TimeInterpolator interpolator) {
+        return configure(newInstance(sFloatAnimator, property, endValue), target,
+                delay, duration, interpolator);
+    }
+
+    /**
+     * Create an animation of the alpha of a paint property, to be run on the
+     * RenderThread of the target view.
+     * @param endAlpha The alpha to animate to, between 0 and 255.
+     */
+    static Animator animatePaintAlpha(Object property, float endAlpha, View target,
+            long delay, long duration, TimeInterpolator interpolator) {
+        return configure(newInstance(sPaintAnimator, property, sPaintAlpha, endAlpha), target,
+                delay, duration, interpolator);
+    }
+
+    /**
+     * Draw a circle whose geometry and paint are canvas properties.
+     * @return false if the canvas doesn't record a display list, in which case
+     * nothing was drawn.
+     */
+    static boolean drawCircle(Canvas canvas, Object centerX, Object centerY, Object radius,
+            Object paint) {
+        if (!sSupported || !sRecordingCanvas.isInstance(canvas)) {
+            return false;
+        }
+        final Object[] args = sDrawArgs;
+        args[0] = centerX;
+        args[1] = centerY;
+        args[2] = radius;
+        args[3] = paint;
+        try {
+            invoke(sDrawCircle, canvas, args);
+        } finally {
+            args[0] = args[1] = args[2] = args[3] = null;
+        }
+        return true;
+    }
+
+    private static Animator configure(Object instance, View target, long delay, long duration,
+            TimeInterpolator interpolator) {
+        final Animator animator = (Animator) instance;
+        animator.setDuration(duration);
+        animator.setStartDelay(delay);
+        animator.setInterpolator(interpolator);
+        invoke(sSetTarget, animator, target);
+        return animator;
+    }
+
+    private static Object invoke(Method method, Object receiver, Object... args) {
+        try {
+            return method.invoke(receiver, args);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static Object newInstance(Constructor<?> constructor, Object... args) {
+        try {
+            return constructor.newInstance(args);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
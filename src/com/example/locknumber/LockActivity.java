@@ -5,12 +5,16 @@ import android.content.Intent;
 import android.os.Bundle;
 import android.view.View;
 
+import com.android.internal.widget.custom.CredentialStore;
+
 public class LockActivity extends Activity {
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_lock);
+        // start loading the enrolled credential, so it's in memory when needed
+        CredentialStore.getInstance(this);
     }
 
     public void clickImage(View v){
@@ -1,21 +1,31 @@
 package com.example.locknumber;
 
+import com.android.internal.widget.custom.AsyncCredentialVerifier;
+import com.android.internal.widget.custom.CredentialHasher;
+import com.android.internal.widget.custom.CredentialStore;
 import com.android.internal.widget.custom.LockNumberView;
 import com.android.internal.widget.custom.LockPatternUtils;
+import com.android.internal.widget.custom.PinBlocklist;
 
 import android.app.Activity;
+import android.content.Intent;
 import android.graphics.Color;
 import android.os.Bundle;
-import android.util.Log;
 import android.view.View;
 import android.widget.ImageView;
 
 public class LockNumberActivity extends Activity {
 
+    /**
+     * Result extra holding the hashed PIN, see {@link CredentialHasher.Record#encode()}.
+     */
+    public static final String EXTRA_CREDENTIAL = "credential";
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_lock_number);
+        mBlocklist = PinBlocklist.getInstance(this);
 
         mLockNumberView = (LockNumberView) this.findViewById(R.id.lockNumber);
         mLockNumberView.setOnPasswdChangeListner(mPasswdChangeListner);
@@ -34,8 +44,15 @@ public class LockNumberActivity extends Activity {
 
     protected LockNumberView mLockNumberView;
     private ImageView mBack;
+    private PinBlocklist mBlocklist;
+
+    // how long to wait before hashing again when the hashing worker is busy
+    private static final long HASH_RETRY_MILLIS = 100;
 
-    private String mFirstPasswd = null;
+    // the password entered first, hashed so it isn't kept around in clear
+    private CredentialHasher.Record mFirstRecord = null;
+    // hashes and checks the password when the view couldn't queue it
+    private final AsyncCredentialVerifier mHasher = new AsyncCredentialVerifier();
 
     protected LockNumberView.onPasswdChangeListner mPasswdChangeListner =
             new LockNumberView.onPasswdChangeListner() {
@@ -52,15 +69,19 @@ public class LockNumberActivity extends Activity {
                     //android.widget.Toast.makeText(getContext(), "密码："+passwd, 0).show();
                     switch(mUiStage){
                         case New:
-                            mFirstPasswd = passwd;
-                            updateStage(Stage.Confirm);
+                            if (mBlocklist.isBlocked(passwd)) {
+                                updateStage(Stage.Blocked);
+                                break;
+                            }
+                            if (!mLockNumberView.hashPasswdAsync(
+                                    CredentialHasher.DEFAULT_TARGET_MILLIS, mFirstPasswdHashed)) {
+                                hashFirstPasswd(passwd);
+                            }
                             break;
                         case Confirm:
-                            if(passwd.equals(mFirstPasswd)){
-                                updateStage(Stage.Success);
-                                savePasswdAndFinish();
-                            }else{
-                                updateStage(Stage.Error);
+                            if (!mLockNumberView.verifyPasswdAsync(mFirstRecord,
+                                    mConfirmVerified)) {
+                                verifyConfirmPasswd(passwd);
                             }
                             break;
                         default:
@@ -74,6 +95,67 @@ public class LockNumberActivity extends Activity {
 
 
 
+    /**
+     * Hash the first password on the worker once it has room, never on the
+     * UI thread. Input is disabled until then.
+     */
+    private void hashFirstPasswd(final String passwd) {
+        mLockNumberView.setChangeEnable(false);
+        if (!mHasher.hashPin(CredentialHasher.DEFAULT_TARGET_MILLIS, passwd,
+                mFirstPasswdHashed)) {
+            mLockNumberView.postDelayed(new Runnable() {
+                public void run() {
+                    if (!isDestroyed()) {
+                        hashFirstPasswd(passwd);
+                    }
+                }
+            }, HASH_RETRY_MILLIS);
+        }
+    }
+
+    /**
+     * Check the confirmation as {@link #hashFirstPasswd} hashes the first password.
+     */
+    private void verifyConfirmPasswd(final String passwd) {
+        mLockNumberView.setChangeEnable(false);
+        if (!mHasher.verifyPin(mFirstRecord, passwd, mConfirmVerified)) {
+            mLockNumberView.postDelayed(new Runnable() {
+                public void run() {
+                    if (!isDestroyed()) {
+                        verifyConfirmPasswd(passwd);
+                    }
+                }
+            }, HASH_RETRY_MILLIS);
+        }
+    }
+
+    private final AsyncCredentialVerifier.OnHashedListener mFirstPasswdHashed =
+            new AsyncCredentialVerifier.OnHashedListener() {
+                @Override
+                public void onHashed(CredentialHasher.Record record) {
+                    if (record == null) {
+                        // couldn't be hashed, start over
+                        updateStage(Stage.New);
+                        return;
+                    }
+                    mFirstRecord = record;
+                    updateStage(Stage.Confirm);
+                }
+            };
+
+    private final AsyncCredentialVerifier.OnVerifiedListener mConfirmVerified =
+            new AsyncCredentialVerifier.OnVerifiedListener() {
+                @Override
+                public void onVerified(boolean matched) {
+                    if (matched) {
+                        updateStage(Stage.Success);
+                        savePasswdAndFinish();
+                    } else {
+                        updateStage(Stage.Error);
+                    }
+                }
+            };
+
     private Runnable mResetRunnable = new Runnable() {
         public void run() {
             mLockNumberView.clearPasswd();
@@ -87,7 +169,8 @@ public class LockNumberActivity extends Activity {
         New(R.string.num_input_passwd, true),
         Confirm(R.string.num_confirm_passwd, true),
         Success(R.string.num_success, false),
-        Error(R.string.num_passwd_confirm_wrong, false);
+        Error(R.string.num_passwd_confirm_wrong, false),
+        Blocked(R.string.num_passwd_blocked, false);
         Stage(int msgId, boolean enable){
             this.msgId = msgId;
             this.enable = enable;
@@ -114,6 +197,10 @@ public class LockNumberActivity extends Activity {
                 mLockNumberView.removeCallbacks(mClearPatternRunnable);
                 mLockNumberView.postDelayed(mClearPatternRunnable, 500);
                 break;
+            case Blocked:
+                mLockNumberView.removeCallbacks(mClearPatternRunnable);
+                mLockNumberView.postDelayed(mClearPatternRunnable, 500);
+                break;
         }
         mUiStage = stage;
     }
@@ -125,10 +212,19 @@ public class LockNumberActivity extends Activity {
         }
     };
 
+    @Override
+    protected void onDestroy() {
+        mHasher.cancel();
+        super.onDestroy();
+    }
+
     private void savePasswdAndFinish() {
-        Log.d("SHUIYES", "save passwd="+mFirstPasswd);
+        // only the salted hash leaves this activity, never the PIN itself
+        final CredentialHasher.Record record = mFirstRecord;
+        // written in the background, the activity doesn't wait for storage
+        CredentialStore.getInstance(this).save(record);
 
-        setResult(RESULT_OK);
+        setResult(RESULT_OK, new Intent().putExtra(EXTRA_CREDENTIAL, record.encode()));
         finish();
     }
 
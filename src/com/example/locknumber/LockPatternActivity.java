@@ -1,27 +1,54 @@
 package com.example.locknumber;
 
 import android.app.Activity;
+import android.content.Intent;
 import android.os.Bundle;
-import android.util.Log;
 import android.view.View;
 import android.widget.Button;
 import android.widget.ImageView;
 import android.widget.TextView;
 
+import com.android.internal.widget.custom.AsyncCredentialVerifier;
+import com.android.internal.widget.custom.CredentialHasher;
+import com.android.internal.widget.custom.CredentialPipeline;
+import com.android.internal.widget.custom.CredentialStore;
 import com.android.internal.widget.custom.LockPatternUtils;
 import com.android.internal.widget.custom.LockPatternView;
 import com.android.internal.widget.custom.LockPatternView.DisplayMode;
+import com.android.internal.widget.custom.PatternBlocklist;
 
-import java.util.ArrayList;
 import java.util.List;
 
 public class LockPatternActivity extends Activity implements View.OnClickListener {
 
+    /**
+     * Result extra holding the hashed pattern, see {@link CredentialHasher.Record#encode()}.
+     */
+    public static final String EXTRA_CREDENTIAL = "credential";
+
+    // indexed by LockPatternUtils.StrengthMeter.getStrength()
+    private static final int[] STRENGTH_MESSAGES = {
+            R.string.lockscreen_pattern_strength_weak,
+            R.string.lockscreen_pattern_strength_medium,
+            R.string.lockscreen_pattern_strength_strong,
+    };
+
     TextView mHeaderText;
     LockPatternView mLockPatternView;
     private ImageView mBack;
+    private PatternBlocklist mBlocklist;
+    private final LockPatternUtils.StrengthMeter mStrengthMeter =
+            new LockPatternUtils.StrengthMeter();
 
-    protected List<LockPatternView.Cell> mChosenPattern = null;
+    // how long to wait before hashing again when the hashing worker is busy
+    private static final long HASH_RETRY_MILLIS = 100;
+
+    protected long mChosenPattern = LockPatternUtils.INVALID_PATTERN;
+    private CredentialHasher.Record mChosenRecord;
+    // the pattern mChosenRecord was hashed from
+    private long mChosenRecordPattern = LockPatternUtils.INVALID_PATTERN;
+    // hashes the chosen pattern when it wasn't hashed while confirming
+    private final AsyncCredentialVerifier mSaveHasher = new AsyncCredentialVerifier();
 
     private Runnable mClearPatternRunnable = new Runnable() {
         public void run() {
@@ -37,6 +64,7 @@ public class LockPatternActivity extends Activity implements View.OnClickListene
 
         New(R.string.lockscreen_access_pattern_start, true),
         ChoiceTooShort(R.string.lockscreen_access_pattern_short, false),
+        ChoiceBlocked(R.string.lockscreen_access_pattern_blocked, false),
         NeedToConfirm(R.string.lockscreen_access_pattern_confirm, true),
         ConfirmWrong(R.string.lockscreen_access_pattern_error, false),
         Success(R.string.lockscreen_access_pattern_detected, false);
@@ -69,6 +97,7 @@ public class LockPatternActivity extends Activity implements View.OnClickListene
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_lock_pattern);
+        mBlocklist = PatternBlocklist.getInstance(this);
 
         mHeaderText = (TextView) findViewById(R.id.HeadText);
         mLockPatternView = (LockPatternView) findViewById(R.id.lockPattern);
@@ -80,6 +109,9 @@ public class LockPatternActivity extends Activity implements View.OnClickListene
 
         mBack = (ImageView) this.findViewById(R.id.back);
         mBack.setOnClickListener(this);
+
+        // installs the pipeline, so the first pattern is hashed as it is drawn too
+        updateStage(Stage.New);
     }
 
     protected LockPatternView.OnPatternListener mChooseNewLockPatternListener =
@@ -87,6 +119,7 @@ public class LockPatternActivity extends Activity implements View.OnClickListene
                 @Override
                 public void onPatternStart() {
                     mLockPatternView.removeCallbacks(mClearPatternRunnable);
+                    mStrengthMeter.reset();
                     patternInProgress();
                 }
 
@@ -97,7 +130,18 @@ public class LockPatternActivity extends Activity implements View.OnClickListene
 
                 @Override
                 public void onPatternCellAdded(List<LockPatternView.Cell> list) {
-
+                    if (mUiStage != Stage.New) {
+                        return;
+                    }
+                    // called once per cell, fill ins included, so only the last one is new
+                    if (mStrengthMeter.size() != list.size() - 1) {
+                        mStrengthMeter.reset();
+                        for (int i = 0; i < list.size() - 1; i++) {
+                            mStrengthMeter.addCell(list.get(i).getValue());
+                        }
+                    }
+                    mStrengthMeter.addCell(list.get(list.size() - 1).getValue());
+                    mHeaderText.setText(STRENGTH_MESSAGES[mStrengthMeter.getStrength()]);
                 }
 
                 @Override
@@ -106,7 +150,8 @@ public class LockPatternActivity extends Activity implements View.OnClickListene
                         return;
 
                     if (mUiStage == Stage.NeedToConfirm) {
-                        if (mChosenPattern.equals(list)) {
+                        if (LockPatternUtils.packedEquals(mChosenPattern,
+                                mLockPatternView.getPackedPattern())) {
                             updateStage(Stage.Success);
                         } else {
                             updateStage(Stage.ConfirmWrong);
@@ -114,9 +159,18 @@ public class LockPatternActivity extends Activity implements View.OnClickListene
                     } else if (mUiStage == Stage.New) {
                         if (list.size() < LockPatternUtils.MIN_LOCK_PATTERN_SIZE) {
                             updateStage(Stage.ChoiceTooShort);
+                        } else if (mBlocklist.isBlocked(mLockPatternView.getPackedPattern())) {
+                            updateStage(Stage.ChoiceBlocked);
                         } else {
-                            mChosenPattern = new ArrayList<LockPatternView.Cell>(list);
-                            updateStage(Stage.NeedToConfirm);
+                            mChosenPattern = mLockPatternView.getPackedPattern();
+                            clearChosenRecord();
+                            // hash it off the UI thread now, so saving is instant
+                            final boolean queued = mLockPatternView.hashPatternAsync(
+                                    CredentialHasher.DEFAULT_TARGET_MILLIS, mChosenPatternHashed);
+                            if (!queued) {
+                                // hashed when saved instead
+                                updateStage(Stage.NeedToConfirm);
+                            }
                         }
                     } else {
                         throw new IllegalStateException("Unexpected stage " + mUiStage
@@ -129,6 +183,22 @@ public class LockPatternActivity extends Activity implements View.OnClickListene
                 }
             };
 
+    private final AsyncCredentialVerifier.OnHashedListener mChosenPatternHashed =
+            new AsyncCredentialVerifier.OnHashedListener() {
+                @Override
+                public void onHashed(CredentialHasher.Record record) {
+                    if (record == null) {
+                        // couldn't be hashed, start over
+                        updateStage(Stage.New);
+                        return;
+                    }
+                    mChosenRecord = record;
+                    // the pattern can't change while it is hashed, input is disabled
+                    mChosenRecordPattern = mChosenPattern;
+                    updateStage(Stage.NeedToConfirm);
+                }
+            };
+
     private void updateStage(Stage stage) {
         mPrevStage = mUiStage;
 
@@ -146,12 +216,18 @@ public class LockPatternActivity extends Activity implements View.OnClickListene
             case New:
                 mBack.setVisibility(View.VISIBLE);
                 mLockPatternView.clearPattern();
+                clearChosenRecord();
+                // derive the key while the new pattern is drawn
+                mLockPatternView.setCredentialPipeline(CredentialPipeline.forNewCredential(
+                        CredentialHasher.DEFAULT_TARGET_MILLIS));
                 break;
             case NeedToConfirm:
                 mBack.setVisibility(View.GONE);
+                mLockPatternView.setCredentialPipeline(null);
                 mLockPatternView.clearPattern();
                 break;
             case ChoiceTooShort:
+            case ChoiceBlocked:
                 //ToastUtil.show(this, R.string.set_pattern_text_too_short, 0);
                 mLockPatternView.clearPattern();
             case ConfirmWrong:
@@ -179,10 +255,58 @@ public class LockPatternActivity extends Activity implements View.OnClickListene
         }
     }
 
+    private void clearChosenRecord() {
+        mChosenRecord = null;
+        mChosenRecordPattern = LockPatternUtils.INVALID_PATTERN;
+    }
+
     private void saveChosenPatternAndFinish() {
-        Log.d("SHUIYES", "save pattern="+LockPatternUtils.patternToString(mChosenPattern));
+        // only a record of the pattern just confirmed
+        if (mChosenRecord != null
+                && LockPatternUtils.packedEquals(mChosenRecordPattern, mChosenPattern)) {
+            saveAndFinish(mChosenRecord);
+        } else {
+            // never hashed on the UI thread
+            mHashChosenPatternRunnable.run();
+        }
+    }
+
+    private final Runnable mHashChosenPatternRunnable = new Runnable() {
+        public void run() {
+            if (!mSaveHasher.hashPattern(CredentialHasher.DEFAULT_TARGET_MILLIS, mChosenPattern,
+                    mChosenPatternSaved)) {
+                // the worker is busy, try again shortly
+                mLockPatternView.postDelayed(this, HASH_RETRY_MILLIS);
+            }
+        }
+    };
+
+    private final AsyncCredentialVerifier.OnHashedListener mChosenPatternSaved =
+            new AsyncCredentialVerifier.OnHashedListener() {
+                @Override
+                public void onHashed(CredentialHasher.Record record) {
+                    if (record == null) {
+                        updateStage(Stage.New);
+                        return;
+                    }
+                    saveAndFinish(record);
+                }
+            };
+
+    @Override
+    protected void onDestroy() {
+        mLockPatternView.removeCallbacks(mHashChosenPatternRunnable);
+        mSaveHasher.cancel();
+        super.onDestroy();
+    }
+
+    private void saveAndFinish(CredentialHasher.Record record) {
+        // only the salted hash leaves this activity, never the pattern itself
+        mChosenPattern = LockPatternUtils.INVALID_PATTERN;
+        // written in the background, the activity doesn't wait for storage
+        CredentialStore.getInstance(this).save(record);
 
-        setResult(RESULT_OK);
+        setResult(RESULT_OK, new Intent().putExtra(EXTRA_CREDENTIAL, record.encode()));
         finish();
     }
 }
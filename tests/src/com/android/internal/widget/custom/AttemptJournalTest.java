@@ -0,0 +1,183 @@
+package com.android.internal.widget.custom;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+
+import junit.framework.TestCase;
+
+public class AttemptJournalTest extends TestCase {
+
+    private static final long TIMEOUT_MILLIS = 5000;
+    // the file layout, see AttemptJournal
+    private static final int CAPACITY = 4096;
+    private static final int HEADER_SIZE = 32;
+
+    private File mDirectory;
+    private File mFile;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDirectory = new File(System.getProperty("java.io.tmpdir"),
+                "AttemptJournalTest-" + System.nanoTime());
+        assertTrue(mDirectory.mkdirs());
+        mFile = new File(mDirectory, "attempts");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        final File[] files = mDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mDirectory.delete();
+        super.tearDown();
+    }
+
+    public void testEmpty() throws Exception {
+        final AttemptJournal journal = open();
+        assertEquals(0, journal.getAttempts(AttemptJournal.MAX_WINDOW_MINUTES));
+        assertEquals(0, journal.getFailures(1));
+        assertEquals(0, journal.getConsecutiveFailures());
+        assertEquals(0, journal.getLastFailureMillis());
+        assertEquals(HEADER_SIZE + CAPACITY * 8, mFile.length());
+    }
+
+    public void testRecordedWhileOpening() throws Exception {
+        // these may land before or after the file is mapped, they count either way
+        final AttemptJournal journal = new AttemptJournal(mDirectory);
+        journal.record(false);
+        journal.record(true);
+        journal.record(false);
+        awaitOpened(journal);
+        journal.record(false);
+        assertEquals(4, journal.getAttempts(AttemptJournal.MAX_WINDOW_MINUTES));
+        assertEquals(3, journal.getFailures(AttemptJournal.MAX_WINDOW_MINUTES));
+        assertEquals(2, journal.getConsecutiveFailures());
+
+        final AttemptJournal reopened = open();
+        assertEquals(4, reopened.getAttempts(AttemptJournal.MAX_WINDOW_MINUTES));
+        assertEquals(3, reopened.getFailures(AttemptJournal.MAX_WINDOW_MINUTES));
+        assertEquals(2, reopened.getConsecutiveFailures());
+    }
+
+    public void testConsecutiveFailures() throws Exception {
+        final AttemptJournal journal = open();
+        final long before = System.currentTimeMillis();
+        journal.record(false);
+        journal.record(false);
+        assertEquals(2, journal.getConsecutiveFailures());
+        journal.record(true);
+        assertEquals(0, journal.getConsecutiveFailures());
+        journal.record(false);
+        final long after = System.currentTimeMillis();
+        assertEquals(1, journal.getConsecutiveFailures());
+        final long last = journal.getLastFailureMillis();
+        assertTrue(last >= before && last <= after);
+
+        final AttemptJournal reopened = open();
+        assertEquals(1, reopened.getConsecutiveFailures());
+        assertEquals(last, reopened.getLastFailureMillis());
+    }
+
+    public void testRingWraps() throws Exception {
+        final AttemptJournal journal = open();
+        for (int i = 0; i < CAPACITY + 10; i++) {
+            journal.record(i % 2 == 0);
+        }
+        // memory counts them all, the file keeps the latest CAPACITY
+        assertEquals(CAPACITY + 10, journal.getAttempts(AttemptJournal.MAX_WINDOW_MINUTES));
+        final AttemptJournal reopened = open();
+        assertEquals(CAPACITY, reopened.getAttempts(AttemptJournal.MAX_WINDOW_MINUTES));
+        assertEquals(CAPACITY / 2, reopened.getFailures(AttemptJournal.MAX_WINDOW_MINUTES));
+        assertEquals(1, reopened.getConsecutiveFailures());
+
+        reopened.record(false);
+        assertEquals(CAPACITY, open().getAttempts(AttemptJournal.MAX_WINDOW_MINUTES));
+    }
+
+    public void testOldAttempts() throws Exception {
+        final long now = System.currentTimeMillis();
+        final long old = now - 2 * AttemptJournal.MAX_WINDOW_MINUTES * 60 * 1000;
+        // a valid header first
+        open();
+        final RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+        try {
+            // head 2 and count 3, the entries wrap past the end of the ring
+            file.seek(12);
+            file.writeInt(2);
+            file.writeInt(3);
+            file.seek(HEADER_SIZE + (CAPACITY - 1) * 8);
+            file.writeLong(old << 1);
+            file.seek(HEADER_SIZE);
+            file.writeLong((old + 1000) << 1);
+            file.writeLong((now << 1) | 1);
+        } finally {
+            file.close();
+        }
+        final AttemptJournal journal = open();
+        // out of the window, but they still make up the failure streak
+        assertEquals(1, journal.getAttempts(AttemptJournal.MAX_WINDOW_MINUTES));
+        assertEquals(0, journal.getFailures(AttemptJournal.MAX_WINDOW_MINUTES));
+        assertEquals(0, journal.getConsecutiveFailures());
+        assertEquals(old + 1000, journal.getLastFailureMillis());
+    }
+
+    public void testCorruptHeader() throws Exception {
+        final AttemptJournal journal = open();
+        journal.record(false);
+        journal.record(false);
+        final RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+        try {
+            // a count past the capacity
+            file.seek(16);
+            file.writeInt(CAPACITY + 1);
+        } finally {
+            file.close();
+        }
+        assertEquals(0, open().getAttempts(AttemptJournal.MAX_WINDOW_MINUTES));
+    }
+
+    public void testForeignFile() throws Exception {
+        final RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+        try {
+            file.writeLong(-1);
+        } finally {
+            file.close();
+        }
+        final AttemptJournal journal = open();
+        assertEquals(0, journal.getAttempts(AttemptJournal.MAX_WINDOW_MINUTES));
+        journal.record(false);
+        assertEquals(1, open().getFailures(AttemptJournal.MAX_WINDOW_MINUTES));
+    }
+
+    public void testWindowRange() throws Exception {
+        final AttemptJournal journal = open();
+        try {
+            journal.getAttempts(0);
+            fail("counted over no minutes");
+        } catch (IllegalArgumentException expected) {
+        }
+        try {
+            journal.getFailures(AttemptJournal.MAX_WINDOW_MINUTES + 1);
+            fail("counted past the window");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    private AttemptJournal open() throws InterruptedException {
+        final AttemptJournal journal = new AttemptJournal(mDirectory);
+        awaitOpened(journal);
+        return journal;
+    }
+
+    private static void awaitOpened(AttemptJournal journal) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (!journal.isOpened()) {
+            assertTrue("not opened", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+}
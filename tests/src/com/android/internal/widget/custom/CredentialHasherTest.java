@@ -0,0 +1,220 @@
+package com.android.internal.widget.custom;
+
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+public class CredentialHasherTest extends TestCase {
+
+    private final CredentialHasher mHasher =
+            new CredentialHasher(CredentialHasher.MIN_ITERATIONS);
+
+    public void testPatternRoundTrip() {
+        final String[] patterns = {"", "1234", "7415963", "123456789"};
+        for (String string : patterns) {
+            final long packed = LockPatternUtils.stringToPacked(string);
+            final CredentialHasher.Record record = mHasher.hashPattern(packed);
+            assertEquals(CredentialHasher.TYPE_PATTERN, record.type);
+            assertEquals(CredentialHasher.SCHEME_PBKDF2, record.scheme);
+            assertEquals(CredentialHasher.MIN_ITERATIONS, record.iterations);
+            assertTrue(string, CredentialHasher.verifyPattern(record, packed));
+        }
+    }
+
+    public void testWrongPattern() {
+        final CredentialHasher.Record record =
+                mHasher.hashPattern(LockPatternUtils.stringToPacked("12369"));
+        assertFalse(CredentialHasher.verifyPattern(record,
+                LockPatternUtils.stringToPacked("1236")));
+        assertFalse(CredentialHasher.verifyPattern(record,
+                LockPatternUtils.stringToPacked("96321")));
+    }
+
+    public void testSaltedHashes() {
+        final long packed = LockPatternUtils.stringToPacked("12369");
+        final CredentialHasher.Record a = mHasher.hashPattern(packed);
+        final CredentialHasher.Record b = mHasher.hashPattern(packed);
+        assertFalse(Arrays.equals(a.salt, b.salt));
+        assertFalse(Arrays.equals(a.hash, b.hash));
+    }
+
+    public void testPinRoundTrip() {
+        final CredentialHasher.Record record = mHasher.hashPin("385172");
+        assertEquals(CredentialHasher.TYPE_PIN, record.type);
+        assertTrue(CredentialHasher.verifyPin(record, "385172"));
+        assertFalse(CredentialHasher.verifyPin(record, "385173"));
+        assertFalse(CredentialHasher.verifyPin(record, ""));
+    }
+
+    public void testTypesDontMix() {
+        // the pattern 1234 and the PIN "1234" serialize to the same bytes
+        final long packed = LockPatternUtils.stringToPacked("1234");
+        final CredentialHasher.Record pattern = mHasher.hashPattern(packed);
+        final CredentialHasher.Record pin = mHasher.hashPin("1234");
+        assertFalse(CredentialHasher.verifyPin(pattern, "1234"));
+        assertFalse(CredentialHasher.verifyPattern(pin, packed));
+    }
+
+    public void testNonAsciiPin() {
+        try {
+            mHasher.hashPin("12\u00e934");
+            fail("hashed a non ASCII PIN");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    public void testInvalidPatternRejected() {
+        final CredentialHasher.Record record =
+                mHasher.hashPattern(LockPatternUtils.stringToPacked("12369"));
+        try {
+            mHasher.hashPattern(LockPatternUtils.INVALID_PATTERN);
+            fail("hashed INVALID_PATTERN");
+        } catch (IllegalArgumentException expected) {
+        }
+        try {
+            CredentialHasher.verifyPattern(record, LockPatternUtils.INVALID_PATTERN);
+            fail("verified INVALID_PATTERN");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    public void testIterationsRange() {
+        try {
+            new CredentialHasher(CredentialHasher.MIN_ITERATIONS - 1);
+            fail("too few iterations");
+        } catch (IllegalArgumentException expected) {
+        }
+        try {
+            new CredentialHasher(CredentialHasher.MAX_ITERATIONS + 1);
+            fail("too many iterations");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    public void testEncodeRoundTrip() {
+        final long packed = LockPatternUtils.stringToPacked("12369");
+        final CredentialHasher.Record record = mHasher.hashPattern(packed);
+        final String encoded = record.encode();
+        assertTrue(encoded, encoded.startsWith("1$"));
+        final CredentialHasher.Record decoded = CredentialHasher.Record.decode(encoded);
+        assertNotNull(decoded);
+        assertEquals(record.type, decoded.type);
+        assertEquals(record.scheme, decoded.scheme);
+        assertEquals(record.iterations, decoded.iterations);
+        assertTrue(Arrays.equals(record.salt, decoded.salt));
+        assertTrue(Arrays.equals(record.hash, decoded.hash));
+        assertTrue(CredentialHasher.verifyPattern(decoded, packed));
+    }
+
+    public void testDecodeRejectsMalformed() {
+        final String encoded = mHasher.hashPin("385172").encode();
+        final String[] parts = encoded.split("\\$");
+        final String[] malformed = {
+            "",
+            "garbage",
+            encoded + "$extra",
+            // unknown version, type, iterations out of range, not a number
+            "9" + encoded.substring(1),
+            parts[0] + "$7$" + parts[2] + "$" + parts[3] + "$" + parts[4],
+            parts[0] + "$" + parts[1] + "$10$" + parts[3] + "$" + parts[4],
+            parts[0] + "$" + parts[1] + "$x$" + parts[3] + "$" + parts[4],
+            // a hash of the wrong length, not Base64
+            parts[0] + "$" + parts[1] + "$" + parts[2] + "$" + parts[3] + "$" + parts[3],
+            parts[0] + "$" + parts[1] + "$" + parts[2] + "$" + parts[3] + "$!!",
+        };
+        assertNull(CredentialHasher.Record.decode(null));
+        for (String string : malformed) {
+            assertNull(string, CredentialHasher.Record.decode(string));
+        }
+    }
+
+    public void testChainedRoundTrip() {
+        final String[] patterns = {"", "5", "7415963", "123456789"};
+        for (String string : patterns) {
+            final long packed = LockPatternUtils.stringToPacked(string);
+            final CredentialHasher.Record record = mHasher.hashPatternChained(packed);
+            assertEquals(CredentialHasher.TYPE_PATTERN, record.type);
+            assertEquals(CredentialHasher.SCHEME_CHAINED, record.scheme);
+            assertTrue(string, CredentialHasher.verifyPattern(record, packed));
+        }
+    }
+
+    public void testChainedWrongPattern() {
+        final CredentialHasher.Record record =
+                mHasher.hashPatternChained(LockPatternUtils.stringToPacked("12369"));
+        // a prefix, the same cells in another order, one more cell
+        assertFalse(CredentialHasher.verifyPattern(record,
+                LockPatternUtils.stringToPacked("1236")));
+        assertFalse(CredentialHasher.verifyPattern(record,
+                LockPatternUtils.stringToPacked("12396")));
+        assertFalse(CredentialHasher.verifyPattern(record,
+                LockPatternUtils.stringToPacked("123698")));
+        assertFalse(CredentialHasher.verifyPin(record, "12369"));
+        try {
+            CredentialHasher.verifyPattern(record, LockPatternUtils.INVALID_PATTERN);
+            fail("verified INVALID_PATTERN");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    public void testChainedStages() {
+        // what CredentialPipeline computes a cell at a time
+        final long packed = LockPatternUtils.stringToPacked("7415963");
+        final CredentialHasher.Record record = mHasher.hashPatternChained(packed);
+        final int size = PatternState.sizeOf(packed);
+        byte[] state = CredentialHasher.chainStart(CredentialHasher.TYPE_PATTERN);
+        for (int i = 0; i < size; i++) {
+            state = CredentialHasher.chainCell(state, PatternState.cellAt(packed, i), i,
+                    record.salt, record.iterations);
+        }
+        assertTrue(Arrays.equals(record.hash,
+                CredentialHasher.chainFinish(state, size, record.salt, record.iterations)));
+        assertTrue(CredentialHasher.matches(record,
+                CredentialHasher.chainFinish(state, size, record.salt, record.iterations)));
+    }
+
+    public void testChainedIterations() {
+        final int[] factors = {
+            CredentialHasher.MIN_ITERATIONS, 4001, 4004, 100000,
+            CredentialHasher.MAX_ITERATIONS - 1, CredentialHasher.MAX_ITERATIONS,
+        };
+        for (int factor : factors) {
+            final int iterations = CredentialHasher.chainedIterations(factor);
+            assertTrue(iterations >= CredentialHasher.MIN_ITERATIONS);
+            assertTrue(iterations <= factor);
+            // the final stage alone costs the whole work factor
+            assertTrue(String.valueOf(factor),
+                    CredentialHasher.chainedFinalIterations(iterations) >= factor);
+            assertTrue(CredentialHasher.chainedFinalIterations(iterations)
+                    <= CredentialHasher.MAX_ITERATIONS);
+        }
+        assertEquals(CredentialHasher.chainedIterations(CredentialHasher.MIN_ITERATIONS),
+                mHasher.hashPatternChained(LockPatternUtils.stringToPacked("1234")).iterations);
+    }
+
+    public void testChainedEncodeRoundTrip() {
+        final long packed = LockPatternUtils.stringToPacked("123456789");
+        final CredentialHasher.Record record = mHasher.hashPatternChained(packed);
+        final String encoded = record.encode();
+        assertTrue(encoded, encoded.startsWith("2$"));
+        final CredentialHasher.Record decoded = CredentialHasher.Record.decode(encoded);
+        assertNotNull(decoded);
+        assertEquals(CredentialHasher.SCHEME_CHAINED, decoded.scheme);
+        assertEquals(record.iterations, decoded.iterations);
+        assertTrue(Arrays.equals(record.salt, decoded.salt));
+        assertTrue(Arrays.equals(record.hash, decoded.hash));
+        assertTrue(CredentialHasher.verifyPattern(decoded, packed));
+        // the same fields read as version 1 are a different record
+        final CredentialHasher.Record plain =
+                CredentialHasher.Record.decode("1" + encoded.substring(1));
+        assertEquals(CredentialHasher.SCHEME_PBKDF2, plain.scheme);
+        assertFalse(CredentialHasher.verifyPattern(plain, packed));
+    }
+
+    public void testNoChainedPin() {
+        final CredentialHasher.Record pin = mHasher.hashPin("385172");
+        assertNull(CredentialHasher.Record.create(CredentialHasher.TYPE_PIN,
+                CredentialHasher.SCHEME_CHAINED, pin.iterations, pin.salt, pin.hash));
+        assertNull(CredentialHasher.Record.decode("2" + pin.encode().substring(1)));
+    }
+}
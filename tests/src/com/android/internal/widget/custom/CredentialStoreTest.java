@@ -0,0 +1,181 @@
+package com.android.internal.widget.custom;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+public class CredentialStoreTest extends TestCase {
+
+    private static final long TIMEOUT_MILLIS = 5000;
+
+    private final CredentialHasher mHasher =
+            new CredentialHasher(CredentialHasher.MIN_ITERATIONS);
+
+    private File mDirectory;
+    private File mFile;
+    private File mTempFile;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDirectory = new File(System.getProperty("java.io.tmpdir"),
+                "CredentialStoreTest-" + System.nanoTime());
+        assertTrue(mDirectory.mkdirs());
+        mFile = new File(mDirectory, "credential");
+        mTempFile = new File(mDirectory, "credential.tmp");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        final File[] files = mDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mDirectory.delete();
+        super.tearDown();
+    }
+
+    public void testEmpty() throws Exception {
+        final CredentialStore store = open();
+        assertNull(store.getRecord());
+        assertFalse(mFile.exists());
+    }
+
+    public void testSaveAndReload() throws Exception {
+        final String[] patterns = {"", "123456789"};
+        for (String string : patterns) {
+            final long packed = LockPatternUtils.stringToPacked(string);
+            final CredentialHasher.Record record = mHasher.hashPattern(packed);
+            final CredentialStore store = open();
+            store.save(record);
+            // right away, before the write
+            assertSame(record, store.getRecord());
+            awaitFile(true);
+
+            final CredentialHasher.Record reloaded = open().getRecord();
+            assertRecordEquals(record, reloaded);
+            assertTrue(string, CredentialHasher.verifyPattern(reloaded, packed));
+            // renamed over the previous record
+            assertFalse(mTempFile.exists());
+            mFile.delete();
+        }
+    }
+
+    public void testChainedAndPinRecords() throws Exception {
+        final CredentialHasher.Record[] records = {
+            mHasher.hashPatternChained(LockPatternUtils.stringToPacked("7415963")),
+            mHasher.hashPin("385172"),
+        };
+        for (CredentialHasher.Record record : records) {
+            open().save(record);
+            awaitFile(true);
+            assertRecordEquals(record, open().getRecord());
+            mFile.delete();
+        }
+    }
+
+    public void testSaveReplaces() throws Exception {
+        final CredentialStore store = open();
+        final CredentialHasher.Record first = mHasher.hashPin("1111");
+        final CredentialHasher.Record second = mHasher.hashPin("2222");
+        store.save(first);
+        store.save(second);
+        assertSame(second, store.getRecord());
+        awaitFile(true);
+        // the saves may be coalesced, the last one is on disk once the writes settle
+        final long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        CredentialHasher.Record reloaded;
+        while (!Arrays.equals(second.hash, (reloaded = open().getRecord()).hash)) {
+            assertTrue("the last save wasn't written", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+        assertRecordEquals(second, reloaded);
+    }
+
+    public void testClear() throws Exception {
+        final CredentialStore store = open();
+        store.save(mHasher.hashPin("385172"));
+        awaitFile(true);
+        store.clear();
+        assertNull(store.getRecord());
+        awaitFile(false);
+        assertNull(open().getRecord());
+    }
+
+    public void testCorruptRecord() throws Exception {
+        final CredentialHasher.Record record = mHasher.hashPin("385172");
+        open().save(record);
+        awaitFile(true);
+        // a byte of the salt, past the magic, version, length and fixed fields
+        final RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+        try {
+            file.seek(12 + 13);
+            final int b = file.read();
+            file.seek(12 + 13);
+            file.write(b ^ 0x01);
+        } finally {
+            file.close();
+        }
+        assertNull(open().getRecord());
+    }
+
+    public void testTruncatedRecord() throws Exception {
+        open().save(mHasher.hashPin("385172"));
+        awaitFile(true);
+        final RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+        try {
+            file.setLength(file.length() - 1);
+        } finally {
+            file.close();
+        }
+        assertNull(open().getRecord());
+    }
+
+    public void testLeftoverTempFile() throws Exception {
+        final CredentialHasher.Record record = mHasher.hashPin("385172");
+        open().save(record);
+        awaitFile(true);
+        // as a crash in the middle of the next write leaves it
+        final RandomAccessFile temp = new RandomAccessFile(mTempFile, "rw");
+        try {
+            temp.write(new byte[] {'S', 'Y'});
+        } finally {
+            temp.close();
+        }
+        assertRecordEquals(record, open().getRecord());
+        assertFalse(mTempFile.exists());
+    }
+
+    private CredentialStore open() throws InterruptedException {
+        final CredentialStore store = new CredentialStore(mDirectory);
+        final long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (!store.isLoaded()) {
+            assertTrue("not loaded", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+        return store;
+    }
+
+    private void awaitFile(boolean exists) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (mFile.exists() != exists) {
+            assertTrue(exists ? "not written" : "not deleted",
+                    System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    private static void assertRecordEquals(CredentialHasher.Record expected,
+            CredentialHasher.Record actual) {
+        assertNotNull(actual);
+        assertEquals(expected.type, actual.type);
+        assertEquals(expected.scheme, actual.scheme);
+        assertEquals(expected.iterations, actual.iterations);
+        assertTrue(Arrays.equals(expected.salt, actual.salt));
+        assertTrue(Arrays.equals(expected.hash, actual.hash));
+    }
+}
@@ -0,0 +1,178 @@
+package com.android.internal.widget.custom;
+
+import java.nio.ByteBuffer;
+import java.util.BitSet;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+public class LockPatternUtilsTest extends TestCase {
+
+    private static final String[] PATTERNS = {"", "5", "12369", "7415963", "123456789"};
+
+    public void testStringRoundTrip() {
+        for (String string : PATTERNS) {
+            final long packed = LockPatternUtils.stringToPacked(string);
+            assertEquals(string.length(), PatternState.sizeOf(packed));
+            assertEquals(string, LockPatternUtils.packedToString(packed));
+        }
+    }
+
+    public void testPackedLayout() {
+        final long packed = LockPatternUtils.stringToPacked("123456789");
+        assertEquals(PatternState.MAX_SIZE, PatternState.sizeOf(packed));
+        for (int i = 0; i < PatternState.MAX_SIZE; i++) {
+            assertEquals(i, PatternState.cellAt(packed, i));
+        }
+        assertEquals(0, LockPatternUtils.stringToPacked(""));
+    }
+
+    public void testMalformedStrings() {
+        final String[] malformed = {"0", "12a", "1231", "1234567891", "12\u00e93"};
+        for (String string : malformed) {
+            assertEquals(string, LockPatternUtils.INVALID_PATTERN,
+                    LockPatternUtils.stringToPacked(string));
+        }
+    }
+
+    public void testByteArrayRoundTrip() {
+        for (String string : PATTERNS) {
+            final long packed = LockPatternUtils.stringToPacked(string);
+            final byte[] bytes = new byte[PatternState.MAX_SIZE + 2];
+            final int length = LockPatternUtils.writePacked(packed, bytes, 2);
+            assertEquals(string.length(), length);
+            assertEquals(packed, LockPatternUtils.readPacked(bytes, 2, length));
+        }
+    }
+
+    public void testByteBufferRoundTrip() {
+        final ByteBuffer buffer = ByteBuffer.allocate(64);
+        for (String string : PATTERNS) {
+            LockPatternUtils.writePacked(LockPatternUtils.stringToPacked(string), buffer);
+        }
+        buffer.flip();
+        for (String string : PATTERNS) {
+            final ByteBuffer slice = buffer.slice();
+            slice.limit(string.length());
+            assertEquals(LockPatternUtils.stringToPacked(string),
+                    LockPatternUtils.readPacked(slice));
+            assertFalse(slice.hasRemaining());
+            buffer.position(buffer.position() + string.length());
+        }
+    }
+
+    public void testMalformedBytesAreConsumed() {
+        final ByteBuffer buffer = ByteBuffer.wrap(new byte[] {'1', '1', '2'});
+        assertEquals(LockPatternUtils.INVALID_PATTERN, LockPatternUtils.readPacked(buffer));
+        assertFalse(buffer.hasRemaining());
+    }
+
+    public void testTooLongBytes() {
+        final byte[] bytes = "1234567891".getBytes();
+        assertEquals(LockPatternUtils.INVALID_PATTERN,
+                LockPatternUtils.readPacked(bytes, 0, bytes.length));
+    }
+
+    public void testCellRoundTrip() {
+        for (String string : PATTERNS) {
+            final long packed = LockPatternUtils.stringToPacked(string);
+            assertEquals(packed, LockPatternUtils.patternToPacked(
+                    LockPatternUtils.packedToPattern(packed)));
+        }
+    }
+
+    public void testEquality() {
+        final long a = LockPatternUtils.stringToPacked("12369");
+        final long b = LockPatternUtils.stringToPacked("12369");
+        assertTrue(LockPatternUtils.packedEquals(a, b));
+        assertEquals(LockPatternUtils.packedHashCode(a), LockPatternUtils.packedHashCode(b));
+        assertFalse(LockPatternUtils.packedEquals(a, LockPatternUtils.stringToPacked("1236")));
+        assertFalse(LockPatternUtils.packedEquals(a, LockPatternUtils.stringToPacked("32169")));
+    }
+
+    public void testInvalidPatternNeverEquals() {
+        final long invalid = LockPatternUtils.INVALID_PATTERN;
+        assertFalse(LockPatternUtils.packedEquals(invalid, invalid));
+        assertFalse(LockPatternUtils.packedEquals(invalid, LockPatternUtils.stringToPacked("")));
+    }
+
+    public void testInvalidPatternRejected() {
+        final long invalid = LockPatternUtils.INVALID_PATTERN;
+        try {
+            LockPatternUtils.writePacked(invalid, new byte[PatternState.MAX_SIZE], 0);
+            fail("wrote INVALID_PATTERN");
+        } catch (IllegalArgumentException expected) {
+        }
+        try {
+            LockPatternUtils.packedToString(invalid);
+            fail("converted INVALID_PATTERN");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    public void testRankBijection() {
+        final int count = LockPatternUtils.getPatternCount();
+        assertEquals(PatternEnumerator.count(), count);
+        long previous = 0;
+        for (int rank = 0; rank < count; rank++) {
+            final long packed = LockPatternUtils.rankToPacked(rank);
+            assertEquals(rank, LockPatternUtils.packedToRank(packed));
+            assertTrue(packed != previous);
+            previous = packed;
+        }
+    }
+
+    public void testEnumeratedPatternsHaveDistinctRanks() {
+        final int count = LockPatternUtils.getPatternCount();
+        final BitSet ranks = new BitSet(count);
+        PatternEnumerator.enumerateSequential(LockPatternUtils.MIN_LOCK_PATTERN_SIZE,
+                PatternState.MAX_SIZE, new PatternEnumerator.Sink() {
+                    @Override
+                    public void accept(long packed) {
+                        final int rank = LockPatternUtils.packedToRank(packed);
+                        assertTrue(rank >= 0 && rank < count);
+                        assertFalse(ranks.get(rank));
+                        ranks.set(rank);
+                    }
+                });
+        assertEquals(count, ranks.cardinality());
+    }
+
+    public void testRankOrder() {
+        assertEquals(0, LockPatternUtils.packedToRank(LockPatternUtils.stringToPacked("1234")));
+        // a pattern comes right before its first extension, 4 is behind the center
+        final int rank = LockPatternUtils.packedToRank(LockPatternUtils.stringToPacked("1236"));
+        assertEquals(rank + 1,
+                LockPatternUtils.packedToRank(LockPatternUtils.stringToPacked("12365")));
+    }
+
+    public void testUnrankablePatterns() {
+        // too short, a move over a cell not in it yet, a duplicate, not a pattern
+        final String[] unrankable = {"", "123", "1369", "2684", "12321"};
+        for (String string : unrankable) {
+            assertEquals(string, -1,
+                    LockPatternUtils.packedToRank(LockPatternUtils.stringToPacked(string)));
+        }
+        assertEquals(-1, LockPatternUtils.packedToRank(LockPatternUtils.INVALID_PATTERN));
+    }
+
+    public void testRankOutOfRange() {
+        try {
+            LockPatternUtils.rankToPacked(-1);
+            fail("unranked -1");
+        } catch (IllegalArgumentException expected) {
+        }
+        try {
+            LockPatternUtils.rankToPacked(LockPatternUtils.getPatternCount());
+            fail("unranked the pattern count");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    public void testRandomPatternsAreValid() {
+        final Random random = new Random(42);
+        for (int i = 0; i < 1000; i++) {
+            assertTrue(LockPatternUtils.packedToRank(LockPatternUtils.randomPattern(random)) >= 0);
+        }
+    }
+}
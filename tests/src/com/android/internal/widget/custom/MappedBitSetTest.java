@@ -0,0 +1,138 @@
+package com.android.internal.widget.custom;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.BitSet;
+
+import junit.framework.TestCase;
+
+public class MappedBitSetTest extends TestCase {
+
+    private File mDirectory;
+    private File mFile;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDirectory = new File(System.getProperty("java.io.tmpdir"),
+                "MappedBitSetTest-" + System.nanoTime());
+        assertTrue(mDirectory.mkdirs());
+        mFile = new File(mDirectory, "bits");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        final File[] files = mDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mDirectory.delete();
+        super.tearDown();
+    }
+
+    public void testRoundTrip() throws Exception {
+        // byte edges, and a size that isn't a whole number of bytes
+        final int size = 1003;
+        final BitSet bits = new BitSet(size);
+        final int[] set = {0, 7, 8, 9, 500, size - 1};
+        for (int index : set) {
+            bits.set(index);
+        }
+        MappedBitSet.write(mFile, bits, size);
+        assertFalse(new File(mFile.getPath() + ".tmp").exists());
+
+        final MappedBitSet mapped = MappedBitSet.open(mFile, size);
+        assertEquals(size, mapped.size());
+        for (int i = 0; i < size; i++) {
+            assertEquals(String.valueOf(i), bits.get(i), mapped.get(i));
+        }
+    }
+
+    public void testEmpty() throws Exception {
+        MappedBitSet.write(mFile, new BitSet(), 16);
+        final MappedBitSet mapped = MappedBitSet.open(mFile, 16);
+        for (int i = 0; i < 16; i++) {
+            assertFalse(mapped.get(i));
+        }
+
+        MappedBitSet.write(mFile, new BitSet(), 0);
+        assertEquals(0, MappedBitSet.open(mFile, 0).size());
+    }
+
+    public void testRewrite() throws Exception {
+        final BitSet bits = new BitSet();
+        bits.set(3);
+        MappedBitSet.write(mFile, bits, 8);
+        bits.clear(3);
+        bits.set(4);
+        MappedBitSet.write(mFile, bits, 8);
+        final MappedBitSet mapped = MappedBitSet.open(mFile, 8);
+        assertFalse(mapped.get(3));
+        assertTrue(mapped.get(4));
+    }
+
+    public void testBitOutOfRange() throws Exception {
+        final BitSet bits = new BitSet();
+        bits.set(8);
+        try {
+            MappedBitSet.write(mFile, bits, 8);
+            fail("wrote a bit past the size");
+        } catch (IllegalArgumentException expected) {
+        }
+        assertFalse(mFile.exists());
+
+        MappedBitSet.write(mFile, new BitSet(), 8);
+        final MappedBitSet mapped = MappedBitSet.open(mFile, 8);
+        try {
+            mapped.get(8);
+            fail("read a bit past the size");
+        } catch (IndexOutOfBoundsException expected) {
+        }
+        try {
+            mapped.get(-1);
+            fail("read a negative bit");
+        } catch (IndexOutOfBoundsException expected) {
+        }
+    }
+
+    public void testWrongSize() throws Exception {
+        MappedBitSet.write(mFile, new BitSet(), 64);
+        try {
+            MappedBitSet.open(mFile, 72);
+            fail("opened a set of another size");
+        } catch (IOException expected) {
+        }
+        // same number of bytes, the header tells them apart
+        try {
+            MappedBitSet.open(mFile, 63);
+            fail("opened a set of another size");
+        } catch (IOException expected) {
+        }
+    }
+
+    public void testBadHeader() throws Exception {
+        MappedBitSet.write(mFile, new BitSet(), 64);
+        final RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+        try {
+            file.writeInt(0);
+        } finally {
+            file.close();
+        }
+        try {
+            MappedBitSet.open(mFile, 64);
+            fail("opened a file without the magic");
+        } catch (IOException expected) {
+        }
+    }
+
+    public void testMissingFile() {
+        try {
+            MappedBitSet.open(mFile, 64);
+            fail("opened a missing file");
+        } catch (IOException expected) {
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package com.android.internal.widget.custom;
+
+import junit.framework.TestCase;
+
+public class PatternRulesTest extends TestCase {
+
+    public void testGrid3Between() {
+        final PatternRules rules = PatternRules.GRID_3;
+        // rows, columns and diagonals over a cell
+        assertEquals(1, rules.between(0, 2));
+        assertEquals(3, rules.between(0, 6));
+        assertEquals(4, rules.between(0, 8));
+        assertEquals(4, rules.between(2, 6));
+        assertEquals(7, rules.between(6, 8));
+        // neighbours and knight moves
+        assertEquals(PatternRules.NONE, rules.between(0, 1));
+        assertEquals(PatternRules.NONE, rules.between(0, 4));
+        assertEquals(PatternRules.NONE, rules.between(0, 5));
+        assertEquals(PatternRules.NONE, rules.between(2, 3));
+        // diagonal neighbours around the center fill in the corner next to them
+        assertEquals(2, rules.between(1, 5));
+        assertEquals(0, rules.between(1, 3));
+        assertEquals(8, rules.between(5, 7));
+        assertEquals(6, rules.between(3, 7));
+    }
+
+    public void testGrid3IsDirect() {
+        final PatternRules rules = PatternRules.GRID_3;
+        assertFalse(rules.isDirect(0, 2, 0));
+        assertTrue(rules.isDirect(0, 2, 1L << 1));
+        assertTrue(rules.isDirect(0, 5, 0));
+        assertFalse(rules.isDirect(0, 8, 1L << 0));
+        assertTrue(rules.isDirect(0, 8, (1L << 0) | (1L << 4)));
+    }
+
+    public void testSplit() {
+        final PatternRules rules = PatternRules.GRID_3;
+        assertTrue(rules.isSplit(0, 2));
+        assertTrue(rules.isSplit(0, 8));
+        assertFalse(rules.isSplit(0, 1));
+        assertFalse(rules.isSplit(0, 5));
+    }
+
+    public void testLargerGridBetween() {
+        final PatternRules rules = PatternRules.forGridSize(4);
+        assertEquals(4, rules.getGridSize());
+        // the nearest cell jumped over, then the next one on the way
+        assertEquals(1, rules.between(0, 3));
+        assertEquals(2, rules.between(1, 3));
+        assertEquals(5, rules.between(0, 15));
+        assertEquals(PatternRules.NONE, rules.between(0, 6));
+        // no corner rule past the 3 X 3 grid
+        assertEquals(PatternRules.NONE, rules.between(1, 4));
+
+        final PatternRules rules5 = PatternRules.forGridSize(5);
+        assertEquals(6, rules5.between(0, 12));
+        assertEquals(7, rules5.between(0, 14));
+        assertEquals(PatternRules.NONE, rules5.between(0, 7));
+    }
+
+    public void testLargerGridIsDirect() {
+        final PatternRules rules = PatternRules.forGridSize(4);
+        assertFalse(rules.isDirect(0, 3, 0));
+        assertFalse(rules.isDirect(0, 3, 1L << 1));
+        assertTrue(rules.isDirect(0, 3, (1L << 1) | (1L << 2)));
+
+        final PatternRules rules8 = PatternRules.forGridSize(PatternRules.MAX_GRID_SIZE);
+        long visited = 0;
+        for (int cell = 1; cell < 63; cell += 9) {
+            visited |= 1L << cell;
+        }
+        assertFalse(rules8.isDirect(0, 63, visited));
+        for (int cell = 9; cell < 63; cell += 9) {
+            visited |= 1L << cell;
+        }
+        assertTrue(rules8.isDirect(0, 63, visited));
+    }
+
+    public void testGridSizes() {
+        assertSame(PatternRules.GRID_3, PatternRules.forGridSize(3));
+        assertSame(PatternRules.forGridSize(6), PatternRules.forGridSize(6));
+        try {
+            PatternRules.forGridSize(PatternRules.MIN_GRID_SIZE - 1);
+            fail("grid too small");
+        } catch (IllegalArgumentException expected) {
+        }
+        try {
+            PatternRules.forGridSize(PatternRules.MAX_GRID_SIZE + 1);
+            fail("grid too large");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+}